@@ -2,11 +2,15 @@ package feynman;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import standardModel.Interaction;
 import standardModel.Particle;
 
 /**
@@ -15,13 +19,13 @@ import standardModel.Particle;
  */
 public class Diagram implements Serializable {
 	private static final long serialVersionUID = 1L;
-	private class Node implements Serializable {
+	/* Nodes are immutable, so are shared by every diagram of a process. */
+	private static class Node implements Serializable {
 		private static final long serialVersionUID = 1L;
 		final String name;
 		final int vertex; 
 		final Particle particle;
 		final int index;      // Index in nodes array
-		int connection = -1;  // Index of connected node
 		Node(String name, int vertex, Particle particle, int index) {
 			this.name = name;
 			this.vertex = vertex;
@@ -30,16 +34,18 @@ public class Diagram implements Serializable {
 		}
 		@Override
 		public String toString() {
-			if (connection == -1) {
-				return name + "{"+ particle + "}";
-			} else {
-				return name + "{"+ particle + "}(" + nodes.get(connection).name + ")";
-			}
+			return name + "{"+ particle + "}";
 		}
 	}
 	/* Incoming/Outgoing nodes are treated as one vertex. */
 	private static final int INCOMING_VERTEX = -2;
 	private static final int OUTGOING_VERTEX = -1;
+	/* Interaction of every vertex, of which the particles are the nodes of 
+	 * a vertex, in order. */
+	private static final Interaction INTERACTION = Interaction.ELECTROMAGNETIC;
+	private static final int SLOTS = INTERACTION.particles.length;
+	/* Default limit of search states memoised by countSubDiagrams. */
+	private static final int MAX_COUNT_STATES = 1 << 16;
 	/* Number of nodes. */
 	private final int noOfIncoming;
 	private final int noOfOutgoing;
@@ -47,8 +53,22 @@ public class Diagram implements Serializable {
 	private final int size;
 	/* List of all nodes. In order of Incoming, Outgoing, Vertices. */
 	private final ArrayList<Node> nodes;
+	/* Index of the connected node of each node, -1 if unconnected. */
+	private final int[] connections;
 	/* List of unconnected node indices corresponding to nodes List. */
 	private final ArrayList<Integer> unconnected;
+	/* Number of vertex relabellings that leave the diagram unchanged. */
+	private final int symmetryFactor;
+	/* Number of diagrams, differing only by vertex labels, this diagram represents. */
+	private final long multiplicity;
+	/* Pairs of names of nodes that must be, or must not be, connected. */
+	private final List<String[]> pins;
+	private final List<String[]> forbids;
+	/* If constrained, whether nodes a and b may be connected, at size * a + b. */
+	private final boolean[] allowed;
+	/* Pins of which any of several connections will do, as the nodes of
+	 * each name, or null if none. */
+	private final int[][][] links;
 	/**
 	 * Creates an unconnected Diagram.
 	 * @param incomingElectrons List of unique names.
@@ -65,7 +85,7 @@ public class Diagram implements Serializable {
 		noOfIncoming = incomingElectrons.size() + incomingPositrons.size() + incomingPhotons.size();
 		noOfOutgoing = outgoingElectrons.size() + outgoingPositrons.size() + outgoingPhotons.size();
 		noOfVertices = vertices.size();
-		size = noOfIncoming + noOfOutgoing + 3 * noOfVertices;
+		size = noOfIncoming + noOfOutgoing + SLOTS * noOfVertices;
 		nodes = new ArrayList<Node>(size);
 		int index = 0;
 		for(String name: incomingElectrons) {
@@ -90,31 +110,404 @@ public class Diagram implements Serializable {
 		}
 		for(int vertex = 0; vertex < vertices.size(); vertex++) {
 			String name = vertices.get(vertex);
-			nodes.add(new Node(name, vertex, Particle.ELECTRON, index++));
-			nodes.add(new Node(name, vertex, Particle.ANTI_ELECTRON, index++));
-			nodes.add(new Node(name, vertex, Particle.PHOTON, index++));
+			for(Particle particle: INTERACTION.particles) {
+				nodes.add(new Node(name, vertex, particle, index++));
+			}
 		}
+		connections = new int[size];
 		unconnected = new ArrayList<Integer>(size);
 		for(int i = 0; i < nodes.size(); i++) {
+			connections[i] = -1;
 			unconnected.add(i);
 		}
+		symmetryFactor = 1;
+		multiplicity = 1;
+		pins = Collections.emptyList();
+		forbids = Collections.emptyList();
+		allowed = null;
+		links = null;
 	}
 	/**
 	 * @param shareNodes
-	 * If true then the diagrams share nodes. 
-	 * WARNING: false is not yet implemented.
+	 * If true then the diagrams share connections, so a change of connection
+	 * in one is seen by all. If false the connections are copied. The 
+	 * nodes themselves never change, so are always shared.
 	 */
 	private Diagram(Diagram copy, boolean shareNodes) {
+		this(copy, shareNodes ? copy.connections : copy.connections.clone(), 
+				new ArrayList<Integer>(copy.unconnected), 1, 1);
+	}
+	private Diagram(Diagram copy, int[] connections, ArrayList<Integer> unconnected, 
+			int symmetryFactor, long multiplicity) {
 		this.noOfIncoming = copy.noOfIncoming;
 		this.noOfOutgoing = copy.noOfOutgoing;
 		this.noOfVertices = copy.noOfVertices;
 		this.size = copy.size;
-		if(shareNodes) {
-			this.nodes = copy.nodes;
-		} else {
-			throw new UnsupportedOperationException();
-		}
+		this.nodes = copy.nodes;
+		this.connections = connections;
+		this.unconnected = unconnected;
+		this.symmetryFactor = symmetryFactor;
+		this.multiplicity = multiplicity;
+		this.pins = copy.pins;
+		this.forbids = copy.forbids;
+		this.allowed = copy.allowed;
+		this.links = copy.links;
+	}
+	/* A copy with the constraints, @see pin and forbid. */
+	private Diagram(Diagram copy, List<String[]> pins, List<String[]> forbids) {
+		this.noOfIncoming = copy.noOfIncoming;
+		this.noOfOutgoing = copy.noOfOutgoing;
+		this.noOfVertices = copy.noOfVertices;
+		this.size = copy.size;
+		this.nodes = copy.nodes;
+		this.connections = copy.connections.clone();
 		this.unconnected = new ArrayList<Integer>(copy.unconnected);
+		this.symmetryFactor = copy.symmetryFactor;
+		this.multiplicity = copy.multiplicity;
+		this.pins = pins;
+		this.forbids = forbids;
+		allowed = new boolean[size * size];
+		Arrays.fill(allowed, true);
+		List<int[][]> links = new ArrayList<int[][]>();
+		for(String[] pin: pins) {
+			int[] nodes1 = nodesNamed(pin[0]);
+			int[] nodes2 = nodesNamed(pin[1]);
+			int a = -1;
+			int b = -1;
+			int candidates = 0;
+			for(int i: nodes1) {
+				for(int j: nodes2) {
+					if(Particle.canConnect(nodes.get(i).particle, nodes.get(j).particle) 
+							&& nodes.get(i).vertex != nodes.get(j).vertex) {
+						a = i;
+						b = j;
+						candidates++;
+					}
+				}
+			}
+			if(candidates == 0) {
+				throw new IllegalArgumentException("Cannot connect " + pin[0] + " and " + pin[1]);
+			} else if(candidates == 1) {
+				// Neither node may connect to any other
+				for(int k = 0; k < size; k++) {
+					if(k != b) {
+						allowed[size * a + k] = allowed[size * k + a] = false;
+					}
+					if(k != a) {
+						allowed[size * b + k] = allowed[size * k + b] = false;
+					}
+				}
+			} else {
+				links.add(new int[][] {nodes1, nodes2});
+			}
+		}
+		for(String[] forbid: forbids) {
+			for(int i: nodesNamed(forbid[0])) {
+				for(int j: nodesNamed(forbid[1])) {
+					allowed[size * i + j] = allowed[size * j + i] = false;
+				}
+			}
+		}
+		this.links = links.isEmpty() ? null : links.toArray(new int[links.size()][][]);
+	}
+	/**
+	 * Creates a fully connected Diagram.
+	 * @param connections Index of the connected node for each node.
+	 * @param symmetryFactor see getSymmetryFactor()
+	 * @param multiplicity see getMultiplicity()
+	 * @param shareNodes If true the diagram uses the connections array, so
+	 * changes with it, otherwise the array is copied.
+	 */
+	Diagram(Diagram copy, int[] connections, int symmetryFactor, long multiplicity, boolean shareNodes) {
+		this(copy, shareNodes ? connections : connections.clone(), new ArrayList<Integer>(0), 
+				symmetryFactor, multiplicity);
+	}
+	/** 
+	 * The copy shares the nodes, which never change, and copies only the
+	 * array of connections.
+	 * @return A copy of this diagram that does not share connections, so is 
+	 * unchanged by any iteration of sub-diagrams.
+	 */
+	public Diagram copy() {
+		return new Diagram(this, connections.clone(), new ArrayList<Integer>(unconnected), symmetryFactor, multiplicity);
+	}
+	/**
+	 * Diagrams with the same signature have the same nodes, and so the same
+	 * sub-diagrams, other than their names.
+	 * @return The number of nodes of each particle, in order, of the 
+	 * incoming and outgoing vertices, and the number of vertices.
+	 */
+	public String getSignature() {
+		StringBuilder signature = new StringBuilder();
+		Node previous = null;
+		int count = 0;
+		for(int i = 0; i < noOfIncoming + noOfOutgoing; i++) {
+			Node node = nodes.get(i);
+			if(previous != null && (node.vertex != previous.vertex || node.particle != previous.particle)) {
+				signature.append(previous.vertex == INCOMING_VERTEX ? "i" : "o")
+				         .append(previous.particle).append('=').append(count).append(',');
+				count = 0;
+			}
+			previous = node;
+			count++;
+		}
+		if(previous != null) {
+			signature.append(previous.vertex == INCOMING_VERTEX ? "i" : "o")
+			         .append(previous.particle).append('=').append(count).append(',');
+		}
+		return signature.append("v=").append(noOfVertices).toString();
+	}
+	/**
+	 * @param names A diagram with the same signature.
+	 * @return A copy of this diagram, not sharing connections, with the names of
+	 * the nodes of names.
+	 * @throws IllegalArgumentException If the signatures differ.
+	 */
+	public Diagram relabel(Diagram names) {
+		if(!getSignature().equals(names.getSignature())) {
+			throw new IllegalArgumentException("Diagram of another process");
+		}
+		return new Diagram(names, connections.clone(), new ArrayList<Integer>(unconnected), symmetryFactor, multiplicity);
+	}
+	/**
+	 * Processes related by crossing, each external particle moved between
+	 * incoming and outgoing as it's anti-particle, have the same nodes but
+	 * for the order of the external nodes, so the same sub-diagrams if they
+	 * have a vertex. Without vertices incoming nodes cannot connect to each
+	 * other, nor outgoing nodes.
+	 * @param process A process of the same crossing family, so with the
+	 * same signature of allIncoming().
+	 * @return A copy of this diagram as a diagram of the process, each
+	 * external node replaced by the external node of the process of the
+	 * same particle, in order. Not sharing connections, with the names of
+	 * the process.
+	 * @throws IllegalArgumentException If the processes are not related by
+	 * crossing, or differ and have no vertices.
+	 */
+	public Diagram cross(Diagram process) {
+		int[] crossing = crossingTo(process);
+		int[] crossed = new int[size];
+		for(int i = 0; i < size; i++) {
+			crossed[crossing[i]] = connections[i] == -1 ? -1 : crossing[connections[i]];
+		}
+		ArrayList<Integer> crossedUnconnected = new ArrayList<Integer>(unconnected.size());
+		for(int index: unconnected) {
+			crossedUnconnected.add(crossing[index]);
+		}
+		Collections.sort(crossedUnconnected);
+		return new Diagram(process, crossed, crossedUnconnected, symmetryFactor, multiplicity);
+	}
+	/* @return The index of the node of process for each node of this diagram. */
+	private int[] crossingTo(Diagram process) {
+		if(noOfVertices != process.noOfVertices || size != process.size
+				|| (noOfVertices == 0 && !getSignature().equals(process.getSignature()))) {
+			throw new IllegalArgumentException("Diagram of another crossing family");
+		}
+		int externals = noOfIncoming + noOfOutgoing;
+		int[] crossing = new int[size];
+		for(int i = externals; i < size; i++) {
+			crossing[i] = i;
+		}
+		// Each external node to the next of process of the same particle
+		HashMap<Particle, Integer> last = new HashMap<Particle, Integer>();
+		for(int i = 0; i < externals; i++) {
+			Particle particle = nodes.get(i).particle;
+			int j = last.getOrDefault(particle, -1) + 1;
+			while(j < externals && process.nodes.get(j).particle != particle) {
+				j++;
+			}
+			if(j == externals) {
+				throw new IllegalArgumentException("Diagram of another crossing family");
+			}
+			crossing[i] = j;
+			last.put(particle, j);
+		}
+		return crossing;
+	}
+	/**
+	 * @return The process of the crossing family of this diagram with every
+	 * external particle incoming, unconnected, with the names of this
+	 * diagram. Its signature is the same for every process of the family.
+	 */
+	public Diagram allIncoming() {
+		List<List<String>> externals = externalNames();
+		return crossing(externals, externals.get(0).size(), externals.get(1).size(), externals.get(2).size());
+	}
+	/**
+	 * @return Each process of the crossing family of this diagram,
+	 * unconnected, with the names of this diagram. First that of
+	 * allIncoming(), then with fewer incoming electrons, positrons, photons.
+	 */
+	public List<Diagram> getCrossings() {
+		List<List<String>> externals = externalNames();
+		List<Diagram> crossings = new ArrayList<Diagram>();
+		for(int electrons = externals.get(0).size(); electrons >= 0; electrons--) {
+			for(int positrons = externals.get(1).size(); positrons >= 0; positrons--) {
+				for(int photons = externals.get(2).size(); photons >= 0; photons--) {
+					crossings.add(crossing(externals, electrons, positrons, photons));
+				}
+			}
+		}
+		return crossings;
+	}
+	/* Names of the external electron, positron, photon nodes, in order. */
+	private List<List<String>> externalNames() {
+		List<List<String>> externals = new ArrayList<List<String>>(3);
+		for(Particle particle: new Particle[] {Particle.ELECTRON, Particle.ANTI_ELECTRON, Particle.PHOTON}) {
+			List<String> names = new ArrayList<String>();
+			for(int i = 0; i < noOfIncoming + noOfOutgoing; i++) {
+				if(nodes.get(i).particle == particle) {
+					names.add(nodes.get(i).name);
+				}
+			}
+			externals.add(names);
+		}
+		return externals;
+	}
+	/* The process with the first of the external names incoming. */
+	private Diagram crossing(List<List<String>> externals, int electrons, int positrons, int photons) {
+		List<String> vertices = new ArrayList<String>(noOfVertices);
+		for(int i = noOfIncoming + noOfOutgoing; i < size; i += SLOTS) {
+			vertices.add(nodes.get(i).name);
+		}
+		List<String> e = externals.get(0);
+		List<String> p = externals.get(1);
+		List<String> g = externals.get(2);
+		// Outgoing electrons are positron nodes, and outgoing positrons electron nodes
+		Diagram crossing = new Diagram(e.subList(0, electrons), p.subList(0, positrons), g.subList(0, photons),
+		                               p.subList(positrons, p.size()), e.subList(electrons, e.size()),
+		                               g.subList(photons, g.size()), vertices);
+		return isConstrained() ? new Diagram(crossing, pins, forbids) : crossing;
+	}
+	/**
+	 * Constrains the sub-diagrams, which are searched for in a smaller
+	 * space. A pin of a single possible connection, e.g. of an incoming/
+	 * outgoing node and a vertex, removes every other partner of both nodes
+	 * from the search. Topologies of constrained diagrams cannot be searched 
+	 * as the vertices are no longer interchangeable.
+	 * @return A copy of this diagram of which every sub-diagram connects a 
+	 * node of name1 and a node of name2.
+	 * @throws IllegalArgumentException If there is no node of a name, or 
+	 * the nodes cannot be connected.
+	 */
+	public Diagram pin(String name1, String name2) {
+		List<String[]> pins = new ArrayList<String[]>(this.pins);
+		pins.add(new String[] {name1, name2});
+		return new Diagram(this, Collections.unmodifiableList(pins), forbids);
+	}
+	/**
+	 * @return A copy of this diagram of which no sub-diagram connects a
+	 * node of name1 and a node of name2, @see pin.
+	 * @throws IllegalArgumentException If there is no node of a name.
+	 */
+	public Diagram forbid(String name1, String name2) {
+		List<String[]> forbids = new ArrayList<String[]>(this.forbids);
+		forbids.add(new String[] {name1, name2});
+		return new Diagram(this, pins, Collections.unmodifiableList(forbids));
+	}
+	/** @return true if there are pinned or forbidden connections. */
+	public boolean isConstrained() {
+		return allowed != null;
+	}
+	/**
+	 * @return The pinned and forbidden connections by name, e.g. 
+	 * "pin=i1-v1,forbid=o1-v2,", or empty if unconstrained.
+	 */
+	public String getConstraints() {
+		StringBuilder constraints = new StringBuilder();
+		for(String[] pin: pins) {
+			constraints.append("pin=").append(pin[0]).append('-').append(pin[1]).append(',');
+		}
+		for(String[] forbid: forbids) {
+			constraints.append("forbid=").append(forbid[0]).append('-').append(forbid[1]).append(',');
+		}
+		return constraints.toString();
+	}
+	/* @return The indices of the nodes of the name. */
+	private int[] nodesNamed(String name) {
+		int[] named = nodes.stream().filter(node -> node.name.equals(name)).mapToInt(node -> node.index).toArray();
+		if(named.length == 0) {
+			throw new IllegalArgumentException("No node named " + name);
+		}
+		return named;
+	}
+	/** @return false if the constraints forbid connecting nodes a and b. */
+	boolean isAllowed(int a, int b) {
+		return allowed == null || allowed[size * a + b];
+	}
+	/** @return true if the connections satisfy every pin of several possible connections. */
+	boolean isLinked(int[] connections) {
+		if(links == null) {
+			return true;
+		}
+		for(int[][] link: links) {
+			boolean linked = false;
+			for(int i = 0; i < link[0].length && !linked; i++) {
+				int connection = connections[link[0][i]];
+				for(int j: link[1]) {
+					linked |= connection == j;
+				}
+			}
+			if(!linked) {
+				return false;
+			}
+		}
+		return true;
+	}
+	/** @return true if some pins are checked only once fully connected. */
+	boolean hasLinks() {
+		return links != null;
+	}
+	/**
+	 * @return The number of loops of every connected sub-diagram, the 
+	 * number of propagators less the vertices and incoming/outgoing nodes,
+	 * plus one.
+	 */
+	public int getLoops() {
+		return size / 2 - noOfVertices - noOfIncoming - noOfOutgoing + 1;
+	}
+	/** @return The number of nodes. */
+	public int size() {
+		return size;
+	}
+	/** @return The number of incoming nodes, the first nodes. */
+	public int getNoOfIncoming() {
+		return noOfIncoming;
+	}
+	/** @return The number of outgoing nodes, after the incoming. */
+	public int getNoOfOutgoing() {
+		return noOfOutgoing;
+	}
+	/** @return The number of vertices, of three nodes each after the outgoing. */
+	public int getNoOfVertices() {
+		return noOfVertices;
+	}
+	/** @return The vertex of the node, INCOMING_VERTEX or OUTGOING_VERTEX. */
+	int vertexOf(int index) {
+		return nodes.get(index).vertex;
+	}
+	/** @return The name of the node. */
+	public String nameOf(int index) {
+		return nodes.get(index).name;
+	}
+	/** @return The particle of the node. */
+	public Particle particleOf(int index) {
+		return nodes.get(index).particle;
+	}
+	/**
+	 * @return The index of the connected node, -1 if unconnected.
+	 * Nodes in the unconnected list are always unconnected.
+	 */
+	public int connectionOf(int index) {
+		return unconnected.isEmpty() || !unconnected.contains(index) ? connections[index] : -1;
+	}
+	/** @return The first index of the node's vertex, -1 if incoming/outgoing. */
+	int vertexStartOf(int index) {
+		int vertex = nodes.get(index).vertex;
+		if(vertex == INCOMING_VERTEX || vertex == OUTGOING_VERTEX) {
+			return -1;
+		}
+		return noOfIncoming + noOfOutgoing + SLOTS * vertex;
 	}
 	/** 
 	 * @return 
@@ -126,9 +519,9 @@ public class Diagram implements Serializable {
 		if(vertex == INCOMING_VERTEX || vertex == OUTGOING_VERTEX) {
 			return new ArrayList<Integer>(0);
 		} else {
-			int i0 = noOfIncoming + noOfOutgoing + 3 * vertex;
+			int i0 = noOfIncoming + noOfOutgoing + SLOTS * vertex;
 			ArrayList<Integer> result = new ArrayList<Integer>(2);
-			for(int i = i0; i < i0 + 3; i++) {
+			for(int i = i0; i < i0 + SLOTS; i++) {
 				if(i != index) {
 					result.add(i);
 				}
@@ -136,7 +529,7 @@ public class Diagram implements Serializable {
 			return result;
 		}
 	}
-	private boolean isConnected() {
+	boolean isConnected() {
 		if(!unconnected.isEmpty()) {
 			return false;
 		}
@@ -147,8 +540,7 @@ public class Diagram implements Serializable {
 		pending.addAll(getVertex(0));
 		while(!pending.isEmpty()) {
 			int index = pending.remove(pending.size() - 1);
-			Node node = nodes.get(index);
-			int connection = node.connection;
+			int connection = connections[index];
 			if(!connected.get(index)) {
 				connected.set(index, Boolean.TRUE);
 				connected.set(connection, Boolean.TRUE);
@@ -164,13 +556,13 @@ public class Diagram implements Serializable {
 	private boolean isValidConnection(int uNodeIndex1, int uNodeIndex2) {
 		Node node1 = nodes.get(unconnected.get(uNodeIndex1));
 		Node node2 = nodes.get(unconnected.get(uNodeIndex2));
-		if(!node1.particle.equals(Particle.getAntiParticle(node2.particle))) {
+		if(!Particle.canConnect(node1.particle, node2.particle)) {
 			return false;
 		}
 		if(node1.vertex == node2.vertex) {
 			return false;
 		}
-		return true;
+		return isAllowed(node1.index, node2.index);
 	}
 	/* Sets the connection. Assumes connection is valid. 
 	 * @param uNodeIndex1, uNodeIndex2
@@ -179,8 +571,8 @@ public class Diagram implements Serializable {
 	private void setValidConnection(int uNodeIndex1, int uNodeIndex2) {
 		Node node1 = nodes.get(unconnected.get(uNodeIndex1));
 		Node node2 = nodes.get(unconnected.get(uNodeIndex2));
-		node1.connection = node2.index;
-		node2.connection = node1.index;
+		connections[node1.index] = node2.index;
+		connections[node2.index] = node1.index;
 		int maxIndex = Math.max(uNodeIndex1, uNodeIndex2);
 		int minIndex = Math.min(uNodeIndex1, uNodeIndex2);
 		unconnected.remove(maxIndex);
@@ -208,7 +600,7 @@ public class Diagram implements Serializable {
 			}
 			public Diagram next() {
 				if (next == null) {
-					if(isConnected() && !self) {
+					if(isConnected() && isLinked(connections) && !self) {
 						self = true;
 						next = Diagram.this;
 					} else if(itr != null && itr.hasNext()) {
@@ -235,6 +627,240 @@ public class Diagram implements Serializable {
 			}
 		};
 	}
+	/**
+	 * Same diagrams in the same order as getSubDiagrams(true), but the search
+	 * is held in primitive arrays rather than a chain of Diagrams and iterators.
+	 * @return An iterator of each sub-diagram by creating only new
+	 * connections. Each sub-diagram is unique. Diagrams share connections, so a
+	 * diagram is only valid until the next is returned.
+	 */
+	public DiagramIterator searchSubDiagrams() {
+		return searchSubDiagrams(DiagramFilter.ALL);
+	}
+	/**
+	 * @param filter Which sub-diagrams are returned.
+	 * @return An iterator as searchSubDiagrams() of the sub-diagrams the
+	 * filter accepts. Branches of only filtered diagrams are not searched.
+	 */
+	public DiagramIterator searchSubDiagrams(DiagramFilter filter) {
+		return new SubDiagramSearch(this, false, filter);
+	}
+	/**
+	 * Counts the sub-diagrams without creating them, memoising the count
+	 * of each search state by the unconnected nodes of each component.
+	 * @return The number of diagrams from getSubDiagrams, or an upper bound
+	 * if there are too many search states to count exactly.
+	 */
+	public DiagramCount countSubDiagrams() {
+		return countSubDiagrams(MAX_COUNT_STATES);
+	}
+	/**
+	 * @param maxStates The most distinct search states to count before 
+	 * giving up and returning an upper bound.
+	 * @see #countSubDiagrams()
+	 */
+	public DiagramCount countSubDiagrams(int maxStates) {
+		return new SubDiagramSearch(this, false).count(maxStates);
+	}
+	/**
+	 * Search states do not hold what a filter of bridges needs, so only
+	 * the unfiltered upper bound is known for such filters.
+	 * @param filter Which sub-diagrams are counted.
+	 * @see #countSubDiagrams()
+	 */
+	public DiagramCount countSubDiagrams(DiagramFilter filter) {
+		return new SubDiagramSearch(this, false, filter).count(MAX_COUNT_STATES);
+	}
+	/**
+	 * The stream may be made parallel, the search is split between threads
+	 * at the first few connections.
+	 * @return A stream of each sub-diagram, in the order of searchSubDiagrams().
+	 * Diagrams do not share connections.
+	 */
+	public Stream<Diagram> subDiagrams() {
+		return StreamSupport.stream(new SubDiagramSpliterator(new SubDiagramSearch(this, false)), false);
+	}
+	/**
+	 * @param from Index, by 0, of the first sub-diagram.
+	 * @return An iterator as searchSubDiagrams(), starting from the indexed
+	 * sub-diagram. Sub-diagrams before it are skipped by counting, without
+	 * searching them.
+	 */
+	public DiagramIterator searchSubDiagrams(long from) {
+		return searchSubDiagrams(DiagramFilter.ALL, from);
+	}
+	/**
+	 * Sub-diagrams are skipped by counting only if the filter has no 
+	 * bridge filters, otherwise they are stepped through.
+	 * @see #searchSubDiagrams(DiagramFilter)
+	 * @see #searchSubDiagrams(long)
+	 */
+	public DiagramIterator searchSubDiagrams(DiagramFilter filter, long from) {
+		SubDiagramSearch search = new SubDiagramSearch(this, false, filter);
+		search.seek(from);
+		return search;
+	}
+	/**
+	 * @param cursor From DiagramIterator.getCursor() of a searchSubDiagrams() 
+	 * iterator of a diagram with the same numbers of each node.
+	 * @return An iterator as searchSubDiagrams(), resumed from the cursor.
+	 * @throws IllegalArgumentException If the cursor is not of such an iterator.
+	 */
+	public DiagramIterator searchSubDiagrams(String cursor) {
+		return searchSubDiagrams(DiagramFilter.ALL, cursor);
+	}
+	/**
+	 * @param filter The filter of the iterator of the cursor.
+	 * @see #searchSubDiagrams(String)
+	 */
+	public DiagramIterator searchSubDiagrams(DiagramFilter filter, String cursor) {
+		SubDiagramSearch search = new SubDiagramSearch(this, false, filter);
+		search.resume(cursor);
+		return search;
+	}
+	/**
+	 * Partitions the sub-diagrams to be searched separately, e.g. by other
+	 * processes, at the earliest connections of the search.
+	 * @param filter Which sub-diagrams are returned.
+	 * @param parts Most parts, there are fewer if the search cannot be split.
+	 * @return The cursor of each part in order, for 
+	 * searchSubDiagrams(filter, cursor). The diagrams of the parts in order 
+	 * are those of searchSubDiagrams(filter).
+	 */
+	public List<String> partitionSubDiagrams(DiagramFilter filter, int parts) {
+		return new SubDiagramSearch(this, false, filter).partition(parts);
+	}
+	/**
+	 * @param index Index, by 0, of the sub-diagram in the order of 
+	 * searchSubDiagrams().
+	 * @return The indexed sub-diagram, or null if there are not that many.
+	 * The sub-diagram does not share connections.
+	 */
+	public Diagram getSubDiagram(long index) {
+		SubDiagramSearch search = new SubDiagramSearch(this, false);
+		search.seek(index);
+		return search.hasNext() ? search.next().copy() : null;
+	}
+	/**
+	 * @param connections Index of the connected node for each node, as
+	 * connectionOf(int) of a fully connected sub-diagram.
+	 * @param symmetryFactor see getSymmetryFactor()
+	 * @param multiplicity see getMultiplicity()
+	 * @return The fully connected sub-diagram, not sharing connections.
+	 * @throws IllegalArgumentException If the connections are not of a
+	 * sub-diagram of this diagram.
+	 */
+	public Diagram connect(int[] connections, int symmetryFactor, long multiplicity) {
+		if(connections.length != size) {
+			throw new IllegalArgumentException("Connections of another process");
+		}
+		for(int i = 0; i < size; i++) {
+			int connection = connections[i];
+			if(connection < 0 || connection >= size || connection == i || connections[connection] != i
+					|| !Particle.canConnect(nodes.get(i).particle, nodes.get(connection).particle)) {
+				throw new IllegalArgumentException("Invalid connection of node " + i);
+			}
+		}
+		return new Diagram(this, connections, symmetryFactor, multiplicity, false);
+	}
+	/**
+	 * Vertices are treated as indistinguishable, so only one sub-diagram of
+	 * each topology is returned. Permutations of the vertices are pruned 
+	 * during the search rather than filtered from the results. 
+	 * The vertices must all be unconnected.
+	 * @return An iterator of one sub-diagram of each topology, with 
+	 * getSymmetryFactor() and getMultiplicity() set. Diagrams share connections,
+	 * so a diagram is only valid until the next is returned.
+	 * @throws UnsupportedOperationException If the diagram is constrained.
+	 */
+	public DiagramIterator searchTopologies() {
+		return searchTopologies(DiagramFilter.ALL);
+	}
+	/**
+	 * @param filter Which topologies are returned.
+	 * @see #searchTopologies()
+	 */
+	public DiagramIterator searchTopologies(DiagramFilter filter) {
+		return new SubDiagramSearch(this, true, filter);
+	}
+	/**
+	 * @param from Index, by 0, of the first topology.
+	 * @return An iterator as searchTopologies(), starting from the indexed
+	 * topology.
+	 */
+	public DiagramIterator searchTopologies(long from) {
+		return searchTopologies(DiagramFilter.ALL, from);
+	}
+	/**
+	 * @see #searchTopologies(DiagramFilter)
+	 * @see #searchTopologies(long)
+	 */
+	public DiagramIterator searchTopologies(DiagramFilter filter, long from) {
+		SubDiagramSearch search = new SubDiagramSearch(this, true, filter);
+		search.seek(from);
+		return search;
+	}
+	/**
+	 * @param cursor From DiagramIterator.getCursor() of a searchTopologies() 
+	 * iterator of a diagram with the same numbers of each node.
+	 * @return An iterator as searchTopologies(), resumed from the cursor.
+	 * @throws IllegalArgumentException If the cursor is not of such an iterator.
+	 */
+	public DiagramIterator searchTopologies(String cursor) {
+		return searchTopologies(DiagramFilter.ALL, cursor);
+	}
+	/**
+	 * @param filter The filter of the iterator of the cursor.
+	 * @see #searchTopologies(String)
+	 */
+	public DiagramIterator searchTopologies(DiagramFilter filter, String cursor) {
+		SubDiagramSearch search = new SubDiagramSearch(this, true, filter);
+		search.resume(cursor);
+		return search;
+	}
+	/**
+	 * @param filter Which topologies are returned.
+	 * @param parts Most parts, there are fewer if the search cannot be split.
+	 * @return The cursor of each part in order, for 
+	 * searchTopologies(filter, cursor).
+	 * @see #partitionSubDiagrams(DiagramFilter, int)
+	 */
+	public List<String> partitionTopologies(DiagramFilter filter, int parts) {
+		return new SubDiagramSearch(this, true, filter).partition(parts);
+	}
+	/**
+	 * @return A stream of the diagrams of searchTopologies(), which may be
+	 * made parallel. Diagrams do not share connections.
+	 */
+	public Stream<Diagram> topologies() {
+		return StreamSupport.stream(new SubDiagramSpliterator(new SubDiagramSearch(this, true)), false);
+	}
+	/**
+	 * @return
+	 * The number of vertex relabellings that leave this diagram unchanged.
+	 * Always 1 for diagrams not from searchTopologies().
+	 */
+	public int getSymmetryFactor() {
+		return symmetryFactor;
+	}
+	/**
+	 * @return
+	 * The number of sub-diagrams from getSubDiagrams that differ from this
+	 * only by vertex labels. Always 1 for diagrams not from searchTopologies().
+	 */
+	public long getMultiplicity() {
+		return multiplicity;
+	}
+	/**
+	 * Diagrams of the same topology, differing only by vertex labels, have
+	 * the same canonical form, the relabelling searchTopologies() returns
+	 * as the topology's diagram.
+	 * @return The label of each vertex in the canonical form.
+	 * @throws IllegalStateException If the diagram is not fully connected.
+	 */
+	public int[] getCanonicalLabels() {
+		return new SubDiagramSearch(this, false).canonicalLabels();
+	}
 	/**
 	 * @param particle Particle of which to find connections.
 	 * @return
@@ -244,17 +870,42 @@ public class Diagram implements Serializable {
 		boolean isOwnAnti = Particle.getAntiParticle(particle).equals(particle);
 		HashMap<String, String> map = new HashMap<String, String>();
 		for(Node node: nodes) {
-			if(node.connection != -1 && node.particle.equals(particle)) {
-				if(!isOwnAnti || node.index < node.connection) {
-					map.put(node.name, nodes.get(node.connection).name);
+			int connection = connections[node.index];
+			if(connection != -1 && node.particle.equals(particle)) {
+				if(!isOwnAnti || node.index < connection) {
+					map.put(node.name, nodes.get(connection).name);
 				}
 				
 			}
 		}
 		return map;
 	}
+	/**
+	 * Visits each connection once, in order of nodes, without allocating. 
+	 * Connections of a particle with it's anti-particle are visited from 
+	 * the particle, as getConnections.
+	 * @param visitor Visitor of each connection.
+	 */
+	public void visitPropagators(PropagatorVisitor visitor) {
+		for(int i = 0; i < size; i++) {
+			Node node = nodes.get(i);
+			if(connections[i] != -1 && !Particle.isAnti(node.particle)) {
+				Node connected = nodes.get(connections[i]);
+				if(connected.particle != node.particle || node.index < connected.index) {
+					visitor.visit(node.name, connected.name, node.particle);
+				}
+			}
+		}
+	}
 	@Override
 	public String toString() {
-		return "Nodes: " + nodes + "\n";
+		StringBuilder string = new StringBuilder("Nodes: [");
+		for(int i = 0; i < size; i++) {
+			string.append(i == 0 ? "" : ", ").append(nodes.get(i));
+			if(connectionOf(i) != -1) {
+				string.append('(').append(nodes.get(connections[i]).name).append(')');
+			}
+		}
+		return string.append("]\n").toString();
 	}
 }
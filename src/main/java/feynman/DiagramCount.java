@@ -0,0 +1,33 @@
+package feynman;
+
+import java.io.Serializable;
+
+/**
+ * The number of sub-diagrams of a Diagram, either exact or an upper bound.
+ * @author Alastair Crowe
+ */
+public final class DiagramCount implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final long count;
+	private final boolean exact;
+	DiagramCount(long count, boolean exact) {
+		this.count = count;
+		this.exact = exact;
+	}
+	/** 
+	 * @return The number of sub-diagrams, or an upper bound if not exact.
+	 */
+	public long getCount() {
+		return count;
+	}
+	/** 
+	 * @return true if getCount() is the exact number of sub-diagrams.
+	 */
+	public boolean isExact() {
+		return exact;
+	}
+	@Override
+	public String toString() {
+		return exact ? Long.toString(count) : "<=" + count;
+	}
+}
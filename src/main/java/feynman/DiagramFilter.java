@@ -0,0 +1,116 @@
+package feynman;
+
+import java.io.Serializable;
+
+/**
+ * Which sub-diagrams a search returns. Filters are checked as connections
+ * are made, so branches that can only give filtered diagrams are cut.
+ * A propagator is a bridge if cutting it splits the diagram in two; a 
+ * bridge to a single incoming/outgoing node is an external leg, and
+ * never filtered.
+ * @author Alastair Crowe
+ */
+public final class DiagramFilter implements Serializable {
+	private static final long serialVersionUID = 1L;
+	/** Every connected sub-diagram. */
+	public static final DiagramFilter ALL = new DiagramFilter(Integer.MAX_VALUE, true, true, true);
+	private final int maxLoops;
+	private final boolean tadpoles;
+	private final boolean selfEnergies;
+	private final boolean reducible;
+	private DiagramFilter(int maxLoops, boolean tadpoles, boolean selfEnergies, boolean reducible) {
+		this.maxLoops = maxLoops;
+		this.tadpoles = tadpoles;
+		this.selfEnergies = selfEnergies;
+		this.reducible = reducible;
+	}
+	/**
+	 * Every connected sub-diagram of a diagram has the same number of loops,
+	 * so the search is either unfiltered or returns nothing.
+	 * @return This filter, also removing diagrams of more than maxLoops loops.
+	 */
+	public DiagramFilter maxLoops(int maxLoops) {
+		return new DiagramFilter(Math.min(this.maxLoops, maxLoops), tadpoles, selfEnergies, reducible);
+	}
+	/**
+	 * @return This filter, also removing diagrams with a bridge to a part
+	 * with no incoming/outgoing nodes.
+	 */
+	public DiagramFilter noTadpoles() {
+		return new DiagramFilter(maxLoops, false, selfEnergies, reducible);
+	}
+	/**
+	 * @return This filter, also removing diagrams with a bridge to a part
+	 * with one incoming/outgoing node and at least one vertex, a correction
+	 * to an external leg.
+	 */
+	public DiagramFilter noSelfEnergies() {
+		return new DiagramFilter(maxLoops, tadpoles, false, reducible);
+	}
+	/**
+	 * One-particle-irreducible diagrams have no bridges other than external
+	 * legs, so this also removes tadpoles and self-energies.
+	 * @return This filter, also removing one-particle-reducible diagrams.
+	 */
+	public DiagramFilter onePI() {
+		return new DiagramFilter(maxLoops, false, false, false);
+	}
+	/** @return The most loops of a diagram. */
+	public int getMaxLoops() {
+		return maxLoops;
+	}
+	/** @return true if diagrams with tadpoles are returned. */
+	public boolean isTadpoles() {
+		return tadpoles;
+	}
+	/** @return true if diagrams with external leg corrections are returned. */
+	public boolean isSelfEnergies() {
+		return selfEnergies;
+	}
+	/** @return true if one-particle-reducible diagrams are returned. */
+	public boolean isReducible() {
+		return reducible;
+	}
+	/** @return true if bridges must be checked. */
+	boolean isBridged() {
+		return !tadpoles || !selfEnergies || !reducible;
+	}
+	/**
+	 * @param vertices Number of vertices on one side of a bridge.
+	 * @param externals Number of incoming/outgoing nodes on that side.
+	 * @param otherVertices Number of vertices on the other side.
+	 * @param otherExternals Number of incoming/outgoing nodes on the other side.
+	 * @return true if a diagram with the bridge is returned.
+	 */
+	boolean accepts(int vertices, int externals, int otherVertices, int otherExternals) {
+		if((vertices == 0 && externals == 1) || (otherVertices == 0 && otherExternals == 1)) {
+			return true;
+		}
+		if(externals == 0 || otherExternals == 0) {
+			return tadpoles;
+		}
+		if(externals == 1 || otherExternals == 1) {
+			return selfEnergies;
+		}
+		return reducible;
+	}
+	@Override
+	public boolean equals(Object obj) {
+		if(!(obj instanceof DiagramFilter)) {
+			return false;
+		}
+		DiagramFilter filter = (DiagramFilter) obj;
+		return maxLoops == filter.maxLoops && tadpoles == filter.tadpoles 
+				&& selfEnergies == filter.selfEnergies && reducible == filter.reducible;
+	}
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+	@Override
+	public String toString() {
+		return (maxLoops == Integer.MAX_VALUE ? "" : "loops<=" + maxLoops + ",") 
+				+ (tadpoles ? "" : "noTadpoles,") + (selfEnergies ? "" : "noSelfEnergies,")
+				+ (reducible ? "" : "onePI,");
+	}
+}
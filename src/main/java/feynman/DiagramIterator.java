@@ -4,4 +4,37 @@ import java.io.Serializable;
 import java.util.Iterator;
 
 @SuppressWarnings("javadoc")
-public interface DiagramIterator extends Iterator<Diagram>, Serializable {}
+public interface DiagramIterator extends Iterator<Diagram>, Serializable {
+	/**
+	 * @return An opaque URL safe string from which the iteration can be 
+	 * resumed, see Diagram.searchSubDiagrams(String).
+	 * @throws UnsupportedOperationException If the iterator cannot be resumed.
+	 */
+	default String getCursor() {
+		throw new UnsupportedOperationException();
+	}
+	/**
+	 * Limits the work of the iteration, after which hasNext returns false
+	 * and isOverBudget true, though there may be more diagrams. The cursor
+	 * then resumes the iteration. Replaces any previous budget.
+	 * @param states Most states of the search to expand.
+	 * @param millis Most time from now, or Long.MAX_VALUE if unlimited.
+	 * @throws UnsupportedOperationException If the iterator cannot be limited.
+	 */
+	default void setBudget(long states, long millis) {
+		throw new UnsupportedOperationException();
+	}
+	/**
+	 * @return True if hasNext returned false as the budget ran out.
+	 */
+	default boolean isOverBudget() {
+		return false;
+	}
+	/**
+	 * @return The index, by 0, of the next diagram in order.
+	 * @throws UnsupportedOperationException If the iterator is not indexed.
+	 */
+	default long getIndex() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,18 @@
+package feynman;
+
+import standardModel.Particle;
+
+/**
+ * Receives each propagator of a Diagram, @see Diagram#visitPropagators.
+ * @author Alastair Crowe
+ */
+@FunctionalInterface
+public interface PropagatorVisitor {
+	/**
+	 * @param from Name of the node of the particle, or of the lower node if
+	 * the particle is it's own anti-particle.
+	 * @param to Name of the node connected to from.
+	 * @param particle Particle of from.
+	 */
+	void visit(String from, String to, Particle particle);
+}
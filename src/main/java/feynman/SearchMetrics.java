@@ -0,0 +1,44 @@
+package feynman;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Totals of the work of all sub-diagram searches, since the class was
+ * loaded. Searches count locally and add their counts as each result is
+ * found, so totals may lag a search in progress.
+ * @author Alastair Crowe
+ */
+public final class SearchMetrics {
+	private static final LongAdder statesVisited = new LongAdder();
+	private static final LongAdder branchesRejected = new LongAdder();
+	private static final LongAdder leavesDisconnected = new LongAdder();
+	private static final LongAdder diagramsEmitted = new LongAdder();
+	private SearchMetrics() {
+	}
+	static void add(long visited, long rejected, long disconnected, long emitted) {
+		statesVisited.add(visited);
+		branchesRejected.add(rejected);
+		leavesDisconnected.add(disconnected);
+		diagramsEmitted.add(emitted);
+	}
+	/** @return The number of connections made. */
+	public static long getStatesVisited() {
+		return statesVisited.sum();
+	}
+	/** 
+	 * @return The number of connections not made, as the particles don't 
+	 * match, they would repeat a topology, or would leave the diagram 
+	 * disconnected.
+	 */
+	public static long getBranchesRejected() {
+		return branchesRejected.sum();
+	}
+	/** @return The number of complete diagrams that were not connected. */
+	public static long getLeavesDisconnected() {
+		return leavesDisconnected.sum();
+	}
+	/** @return The number of diagrams returned. */
+	public static long getDiagramsEmitted() {
+		return diagramsEmitted.sum();
+	}
+}
@@ -0,0 +1,1171 @@
+package feynman;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import standardModel.Particle;
+
+/**
+ * A backtracking search over the sub-diagrams of a Diagram.
+ * The search state is held in primitive arrays with an explicit
+ * stack of connections made, so no objects are created per branch.
+ * Connected components are kept in an undoable union-find, so a branch 
+ * is cut as soon as a component is closed off from the rest.
+ * Diagrams are produced in the same order as Diagram.getSubDiagrams.
+ * @author Alastair Crowe
+ */
+final class SubDiagramSearch implements DiagramIterator {
+	private static final long serialVersionUID = 1L;
+	/* The diagram being searched, it's nodes are shared with results. */
+	private final Diagram diagram;
+	/* Number of nodes. Also the index of the list head. */
+	private final int size;
+	/* Vertex of each node, as Diagram.Node.vertex. */
+	private final int[] vertex;
+	/* Particle of each node. */
+	private final Particle[] particle;
+	/* First node of each node's vertex, or -1 for incoming/outgoing. */
+	private final int[] vertexStart;
+	/* Index of connected node, -1 if unconnected. */
+	private final int[] connection;
+	/* Doubly linked list of unconnected nodes in ascending order. The head
+	 * is at index size, so prev[size] is the last unconnected node. */
+	private final int[] next;
+	private final int[] prev;
+	/* The same list of unconnected nodes of each particle, so partners are
+	 * found without scanning nodes of other particles. Heads of the lists
+	 * of each particle of the diagram follow the head of the list above. */
+	private final int[] nextOfParticle;
+	private final int[] prevOfParticle;
+	/* Head of the list of the anti-particle of each node's particle. */
+	private final int[] antiHead;
+	/* Stack of connections made. Node a is always the last unconnected
+	 * node at the time, node c is it's current partner. */
+	private final int[] stackA;
+	private final int[] stackC;
+	private int depth = 0;
+	/* True if the state at the top of the stack is yet to be explored. */
+	private boolean expand = true;
+	/* True if the current state is a diagram not yet returned by next. */
+	private boolean ready = false;
+	/* Groups are each vertex, then each incoming/outgoing node. */
+	private final int noOfGroups;
+	/* Group of each node. */
+	private final int[] group;
+	/* Union-find of the connected components of groups. Parent group, 
+	 * number of groups and number of unconnected nodes of each root. */
+	private final int[] parent;
+	private final int[] groups;
+	private final int[] open;
+	/* Number of incoming/outgoing groups of each root. */
+	private final int[] externals;
+	/* Which diagrams are returned. Bridges are checked as components close
+	 * and again when a diagram is complete. */
+	private final DiagramFilter filter;
+	private final boolean bridged;
+	/* True if diagrams have more loops than the filter allows. */
+	private final boolean tooManyLoops;
+	/* True if the diagram has pinned or forbidden connections, and if some
+	 * pins are only checked once fully connected, @see Diagram#pin. */
+	private final boolean constrained;
+	private final boolean linked;
+	/* Work arrays for bridges(), by group. */
+	private final int[] discovered;
+	private final int[] low;
+	private final int[] entered;
+	private final int[] visit;
+	private final int[] subVertices;
+	private final int[] subExternals;
+	private final int[] dfs;
+	/* The group no longer a root after each connection in the stack. */
+	private final int[] merged;
+	/* If true only one diagram of each topology is returned, see
+	 * automorphisms(). */
+	private final boolean topologies;
+	/* Number of vertices and index of the first vertex node. */
+	private final int noOfVertices;
+	private final int vertexBase;
+	/* Number of unlinked nodes of each vertex. */
+	private final int[] degree;
+	/* Number of vertices with unlinked nodes. */
+	private int touched = 0;
+	/* Automorphisms of the current diagram, see automorphisms(). */
+	private int symmetryFactor = 1;
+	/* Number of vertex permutations, or 1 if not in topology mode. */
+	private final long permutations;
+	/* Number of connections at the bottom of the stack that are fixed. */
+	private int base = 0;
+	/* Index of the next result, by 0. */
+	private long index = 0;
+	/* Memoised counts of states for seek. */
+	private transient Map<String, Long> memo;
+	/* Limit of memoised counts for seek. */
+	private static final int MAX_SEEK_STATES = 1 << 16;
+	private static final int NO_OF_PARTICLES = Particle.values().length;
+	/* Lower bound, exclusive, of the partners of each connection in the stack. */
+	private final int[] limit;
+	/* Counts not yet added to SearchMetrics. */
+	private long visited = 0;
+	private long rejected = 0;
+	private long disconnected = 0;
+	private long emitted = 0;
+	/* States that may still be expanded, and the System.nanoTime after which
+	 * none may be if timed, @see setBudget. */
+	private long budget = Long.MAX_VALUE;
+	private long deadline;
+	private boolean timed = false;
+	private boolean overBudget = false;
+	/* States to expand before the deadline is next checked. */
+	private int untilDeadlineCheck = 0;
+	private static final int DEADLINE_CHECK_STATES = 1 << 12;
+	/* Work arrays for automorphisms. */
+	private final int[] label;
+	private final int[] labelled;
+	private final int[] relabelled;
+	/**
+	 * @param diagram The diagram to search from.
+	 * @param topologies If true only one diagram of each topology is 
+	 * returned, with it's symmetry factor and multiplicity. Vertices must
+	 * all be unconnected.
+	 */
+	SubDiagramSearch(Diagram diagram, boolean topologies) {
+		this(diagram, topologies, DiagramFilter.ALL);
+	}
+	/**
+	 * @param filter Which diagrams are returned.
+	 * @see #SubDiagramSearch(Diagram, boolean)
+	 * @throws UnsupportedOperationException For topologies of a constrained
+	 * diagram.
+	 */
+	SubDiagramSearch(Diagram diagram, boolean topologies, DiagramFilter filter) {
+		if(topologies && diagram.isConstrained()) {
+			throw new UnsupportedOperationException("Topologies of a constrained diagram");
+		}
+		this.diagram = diagram;
+		this.topologies = topologies;
+		this.filter = filter;
+		size = diagram.size();
+		vertex = new int[size];
+		particle = new Particle[size];
+		vertexStart = new int[size];
+		connection = new int[size];
+		next = new int[size + 1];
+		prev = new int[size + 1];
+		// Heads of particle lists, in order of the particle's first node
+		int[] heads = new int[NO_OF_PARTICLES];
+		int noOfHeads = 0;
+		antiHead = new int[size];
+		for(int i = 0; i < size; i++) {
+			int ordinal = diagram.particleOf(i).ordinal();
+			if(heads[ordinal] == 0) {
+				heads[ordinal] = size + 1 + noOfHeads++;
+			}
+		}
+		for(int i = 0; i < size; i++) {
+			int anti = Particle.getAntiOrdinal(diagram.particleOf(i).ordinal());
+			if(heads[anti] == 0) {
+				heads[anti] = size + 1 + noOfHeads++;
+			}
+			antiHead[i] = heads[anti];
+		}
+		nextOfParticle = new int[size + 1 + noOfHeads];
+		prevOfParticle = new int[size + 1 + noOfHeads];
+		for(int head = size + 1; head < nextOfParticle.length; head++) {
+			nextOfParticle[head] = head;
+			prevOfParticle[head] = head;
+		}
+		stackA = new int[size / 2 + 1];
+		stackC = new int[size / 2 + 1];
+		limit = new int[size / 2 + 1];
+		merged = new int[size / 2 + 1];
+		int last = size;
+		for(int i = 0; i < size; i++) {
+			vertex[i] = diagram.vertexOf(i);
+			particle[i] = diagram.particleOf(i);
+			vertexStart[i] = diagram.vertexStartOf(i);
+			connection[i] = diagram.connectionOf(i);
+			if(connection[i] == -1) {
+				next[last] = i;
+				prev[i] = last;
+				last = i;
+				int head = heads[particle[i].ordinal()];
+				nextOfParticle[prevOfParticle[head]] = i;
+				prevOfParticle[i] = prevOfParticle[head];
+				nextOfParticle[i] = head;
+				prevOfParticle[head] = i;
+			}
+		}
+		next[last] = size;
+		prev[size] = last;
+		noOfVertices = diagram.getNoOfVertices();
+		vertexBase = size - 3 * noOfVertices;
+		degree = new int[noOfVertices];
+		for(int i = vertexBase; i < size; i++) {
+			if(connection[i] != -1) {
+				if(topologies) {
+					throw new IllegalArgumentException("Vertices must be unconnected");
+				}
+				if(degree[vertex[i]]++ == 0) {
+					touched++;
+				}
+			}
+		}
+		long permutations = 1;
+		for(int n = 2; topologies && n <= noOfVertices; n++) {
+			permutations *= n;
+		}
+		this.permutations = permutations;
+		label = new int[noOfVertices];
+		labelled = new int[noOfVertices];
+		relabelled = new int[size];
+		noOfGroups = noOfVertices + vertexBase;
+		group = new int[size];
+		parent = new int[noOfGroups];
+		groups = new int[noOfGroups];
+		open = new int[noOfGroups];
+		externals = new int[noOfGroups];
+		for(int g = 0; g < noOfGroups; g++) {
+			parent[g] = g;
+			groups[g] = 1;
+			externals[g] = g < noOfVertices ? 0 : 1;
+		}
+		bridged = filter.isBridged();
+		tooManyLoops = size / 2 - noOfGroups + 1 > filter.getMaxLoops();
+		constrained = diagram.isConstrained();
+		linked = diagram.hasLinks();
+		discovered = bridged ? new int[noOfGroups] : null;
+		low = bridged ? new int[noOfGroups] : null;
+		entered = bridged ? new int[noOfGroups] : null;
+		visit = bridged ? new int[noOfGroups] : null;
+		subVertices = bridged ? new int[noOfGroups] : null;
+		subExternals = bridged ? new int[noOfGroups] : null;
+		dfs = bridged ? new int[noOfGroups] : null;
+		for(int i = 0; i < size; i++) {
+			group[i] = i < vertexBase ? noOfVertices + i : vertex[i];
+			open[group[i]]++;
+		}
+		for(int i = 0; i < size; i++) {
+			if(connection[i] > i) {
+				union(group[i], group[connection[i]]);
+			}
+		}
+	}
+	/* A copy of the search in the same state. */
+	private SubDiagramSearch(SubDiagramSearch copy) {
+		diagram = copy.diagram;
+		size = copy.size;
+		vertex = copy.vertex;
+		particle = copy.particle;
+		vertexStart = copy.vertexStart;
+		connection = copy.connection.clone();
+		next = copy.next.clone();
+		prev = copy.prev.clone();
+		nextOfParticle = copy.nextOfParticle.clone();
+		prevOfParticle = copy.prevOfParticle.clone();
+		antiHead = copy.antiHead;
+		stackA = copy.stackA.clone();
+		stackC = copy.stackC.clone();
+		limit = copy.limit.clone();
+		depth = copy.depth;
+		base = copy.base;
+		index = copy.index;
+		expand = copy.expand;
+		ready = copy.ready;
+		merged = copy.merged.clone();
+		topologies = copy.topologies;
+		noOfVertices = copy.noOfVertices;
+		vertexBase = copy.vertexBase;
+		degree = copy.degree.clone();
+		touched = copy.touched;
+		symmetryFactor = copy.symmetryFactor;
+		permutations = copy.permutations;
+		label = new int[noOfVertices];
+		labelled = new int[noOfVertices];
+		relabelled = new int[size];
+		noOfGroups = copy.noOfGroups;
+		group = copy.group;
+		parent = copy.parent.clone();
+		groups = copy.groups.clone();
+		open = copy.open.clone();
+		externals = copy.externals.clone();
+		filter = copy.filter;
+		bridged = copy.bridged;
+		tooManyLoops = copy.tooManyLoops;
+		constrained = copy.constrained;
+		linked = copy.linked;
+		discovered = bridged ? new int[noOfGroups] : null;
+		low = bridged ? new int[noOfGroups] : null;
+		entered = bridged ? new int[noOfGroups] : null;
+		visit = bridged ? new int[noOfGroups] : null;
+		subVertices = bridged ? new int[noOfGroups] : null;
+		subExternals = bridged ? new int[noOfGroups] : null;
+		dfs = bridged ? new int[noOfGroups] : null;
+	}
+	/* Removes the node from the unconnected list. Nodes must be relinked
+	 * in the reverse order to which they are removed. */
+	private void unlink(int index) {
+		next[prev[index]] = next[index];
+		prev[next[index]] = prev[index];
+		nextOfParticle[prevOfParticle[index]] = nextOfParticle[index];
+		prevOfParticle[nextOfParticle[index]] = prevOfParticle[index];
+		if(index >= vertexBase && degree[vertex[index]]++ == 0) {
+			touched++;
+		}
+	}
+	private void relink(int index) {
+		next[prev[index]] = index;
+		prev[next[index]] = index;
+		nextOfParticle[prevOfParticle[index]] = index;
+		prevOfParticle[nextOfParticle[index]] = index;
+		if(index >= vertexBase && --degree[vertex[index]] == 0) {
+			touched--;
+		}
+	}
+	/* In topology mode, untouched vertices are interchangeable so only a
+	 * connection to the highest of them is searched. Vertices are then 
+	 * always touched in descending order. */
+	private boolean isSymmetricConnection(int c) {
+		return topologies && c >= vertexBase && degree[vertex[c]] == 0
+				&& vertex[c] != noOfVertices - touched - 1;
+	}
+	/* As Diagram.isValidConnection. */
+	private boolean isValidConnection(int a, int c) {
+		return particle[c] == Particle.getAntiParticle(particle[a]) && vertex[a] != vertex[c] 
+				&& (!constrained || diagram.isAllowed(a, c));
+	}
+	/* Root of the group's component. Components are not path compressed 
+	 * so that unions can be undone. */
+	private int find(int group) {
+		while(parent[group] != group) {
+			group = parent[group];
+		}
+		return group;
+	}
+	/* Joins the components of two groups with a connection.
+	 * @return The group that is no longer a root, or -1 if the groups were
+	 * already in the same component. */
+	private int union(int group1, int group2) {
+		int root1 = find(group1);
+		int root2 = find(group2);
+		if(root1 == root2) {
+			open[root1] -= 2;
+			return -1;
+		}
+		if(groups[root1] < groups[root2]) {
+			int root = root1;
+			root1 = root2;
+			root2 = root;
+		}
+		parent[root2] = root1;
+		groups[root1] += groups[root2];
+		externals[root1] += externals[root2];
+		open[root1] += open[root2] - 2;
+		return root2;
+	}
+	/* Undoes union, which must be the last union not undone. */
+	private void undoUnion(int group, int merged) {
+		if(merged == -1) {
+			open[find(group)] += 2;
+		} else {
+			int root = parent[merged];
+			parent[merged] = merged;
+			groups[root] -= groups[merged];
+			externals[root] -= externals[merged];
+			open[root] -= open[merged] - 2;
+		}
+	}
+	/* A connection is pruned if it would close a component, leaving it no 
+	 * unconnected nodes, without it containing every group. */
+	private boolean isClosing(int a, int c) {
+		int root1 = find(group[a]);
+		int root2 = find(group[c]);
+		if(root1 == root2) {
+			return open[root1] == 2 && groups[root1] != noOfGroups;
+		}
+		return open[root1] + open[root2] == 2 && groups[root1] + groups[root2] != noOfGroups;
+	}
+	/* A connection is filtered if it would leave a component with one 
+	 * unconnected node, so a bridge, that the filter does not accept. */
+	private boolean isFiltered(int a, int c) {
+		if(tooManyLoops) {
+			return true;
+		}
+		if(!bridged) {
+			return false;
+		}
+		int root1 = find(group[a]);
+		int root2 = find(group[c]);
+		int componentOpen = open[root1] - 2;
+		int componentGroups = groups[root1];
+		int componentExternals = externals[root1];
+		if(root1 != root2) {
+			componentOpen += open[root2];
+			componentGroups += groups[root2];
+			componentExternals += externals[root2];
+		}
+		if(componentOpen != 1) {
+			return false;
+		}
+		int componentVertices = componentGroups - componentExternals;
+		return !filter.accepts(componentVertices, componentExternals, 
+				noOfVertices - componentVertices, vertexBase - componentExternals);
+	}
+	/* @return true if node c is a partner to be searched for node a. */
+	private boolean isPartner(int a, int c) {
+		return isValidConnection(a, c) && !isSymmetricConnection(c) && !isClosing(a, c) && !isFiltered(a, c);
+	}
+	/* The first node of a group. */
+	private int firstNodeOf(int g) {
+		return g < noOfVertices ? vertexBase + 3 * g : g - noOfVertices;
+	}
+	/* The number of nodes of a group. */
+	private int nodesOf(int g) {
+		return g < noOfVertices ? 3 : 1;
+	}
+	/* For when all nodes are connected. Finds the bridges by a depth first
+	 * search of the groups, a bridge is a connection to a group from which
+	 * no earlier group is reached other than by the bridge.
+	 * @return true if the filter accepts every bridge. */
+	private boolean isBridgesAccepted() {
+		for(int g = 0; g < noOfGroups; g++) {
+			discovered[g] = -1;
+		}
+		int time = 0;
+		int top = 0;
+		dfs[top++] = 0;
+		discovered[0] = low[0] = time++;
+		entered[0] = -1;
+		visit[0] = 0;
+		subVertices[0] = noOfVertices > 0 ? 1 : 0;
+		subExternals[0] = 1 - subVertices[0];
+		while(top > 0) {
+			int g = dfs[top - 1];
+			if(visit[g] < nodesOf(g)) {
+				int p = firstNodeOf(g) + visit[g]++;
+				int q = connection[p];
+				if(q == entered[g]) {
+					continue;
+				}
+				int h = group[q];
+				if(discovered[h] == -1) {
+					discovered[h] = low[h] = time++;
+					entered[h] = p;
+					visit[h] = 0;
+					subVertices[h] = h < noOfVertices ? 1 : 0;
+					subExternals[h] = 1 - subVertices[h];
+					dfs[top++] = h;
+				} else {
+					low[g] = Math.min(low[g], discovered[h]);
+				}
+			} else {
+				top--;
+				if(top > 0) {
+					int f = dfs[top - 1];
+					low[f] = Math.min(low[f], low[g]);
+					subVertices[f] += subVertices[g];
+					subExternals[f] += subExternals[g];
+					if(low[g] > discovered[f] && !filter.accepts(subVertices[g], subExternals[g], 
+							noOfVertices - subVertices[g], vertexBase - subExternals[g])) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+	/* For when all nodes are connected. */
+	private boolean isConnected() {
+		return size > 0 && groups[find(0)] == noOfGroups;
+	}
+	/* Maps a node to it's index under the vertex labelling. */
+	private int relabelNode(int index) {
+		if(index < vertexBase) {
+			return index;
+		}
+		int offset = index - vertexBase;
+		return vertexBase + 3 * label[offset / 3] + offset % 3;
+	}
+	/* The connections of a connected diagram, relabelled such that the 
+	 * search would reach it touching vertices in descending order starting 
+	 * from the root. The search in topology mode only reaches diagrams that 
+	 * are their own relabelling from the highest vertex. */
+	private void relabel(int root) {
+		for(int v = 0; v < noOfVertices; v++) {
+			label[v] = -1;
+		}
+		for(int i = 0; i < size; i++) {
+			relabelled[i] = -1;
+		}
+		int nextLabel = noOfVertices - 1;
+		label[root] = nextLabel;
+		labelled[nextLabel--] = root;
+		for(int p = size - 1; p >= 0; p--) {
+			if(relabelled[p] != -1) {
+				continue;
+			}
+			int offset = p - vertexBase;
+			int index = offset < 0 ? p : vertexBase + 3 * labelled[offset / 3] + offset % 3;
+			int c = connection[index];
+			if(c >= vertexBase && label[vertex[c]] == -1) {
+				label[vertex[c]] = nextLabel;
+				labelled[nextLabel--] = vertex[c];
+			}
+			int q = relabelNode(c);
+			relabelled[p] = q;
+			relabelled[q] = p;
+		}
+	}
+	/* The topology's representative is the least relabelling, comparing 
+	 * connections from the last node.
+	 * @return The number of relabellings equal to the current diagram, 
+	 * 0 if the current diagram is not the representative. */
+	private int automorphisms() {
+		int count = 1;
+		for(int root = 0; root < noOfVertices - 1; root++) {
+			relabel(root);
+			int i = size - 1;
+			while(i >= 0 && relabelled[i] == connection[i]) {
+				i--;
+			}
+			if(i < 0) {
+				count++;
+			} else if(relabelled[i] < connection[i]) {
+				return 0;
+			}
+		}
+		return count;
+	}
+	/**
+	 * The canonical form of a topology is it's least relabelling, as the
+	 * representative of automorphisms(), so is the same for every diagram
+	 * of the topology whatever the labels of it's vertices.
+	 * @return The label of each vertex in the canonical form.
+	 * @throws IllegalStateException If the diagram is not fully connected.
+	 */
+	int[] canonicalLabels() {
+		if(prev[size] != size || (size > 0 && !isConnected())) {
+			throw new IllegalStateException("Diagram not connected");
+		}
+		int[] least = new int[size];
+		int[] labels = new int[noOfVertices];
+		// From the highest vertex, so the canonical form is labelled as it is
+		for(int root = noOfVertices - 1; root >= 0; root--) {
+			relabel(root);
+			int i = size - 1;
+			while(i >= 0 && relabelled[i] == least[i]) {
+				i--;
+			}
+			if(root == noOfVertices - 1 || (i >= 0 && relabelled[i] < least[i])) {
+				System.arraycopy(relabelled, 0, least, 0, size);
+				System.arraycopy(label, 0, labels, 0, noOfVertices);
+			}
+		}
+		return labels;
+	}
+	/* Moves the connection at the top of the stack to the next valid
+	 * partner. Node a and the current partner must be removed.
+	 * @return false if there are no more partners. */
+	private boolean nextPartner() {
+		int a = stackA[depth - 1];
+		int c = stackC[depth - 1];
+		if(c != a) {
+			disconnect();
+		}
+		// Partners are the unconnected nodes of the anti-particle, below a
+		for(c = c == a ? prevOfParticle[antiHead[a]] : prevOfParticle[c]; 
+				c < size && c > limit[depth - 1]; c = prevOfParticle[c]) {
+			if(isPartner(a, c)) {
+				connect(c);
+				return true;
+			}
+			rejected++;
+		}
+		return false;
+	}
+	/* Pushes a connection from the unexplored state at the top of the stack.
+	 * @return false if there are no valid connections. */
+	private boolean push() {
+		int a = prev[size];
+		unlink(a);
+		stackA[depth] = a;
+		stackC[depth] = a;
+		limit[depth] = -1;
+		depth++;
+		if(nextPartner()) {
+			return true;
+		}
+		relink(a);
+		depth--;
+		return false;
+	}
+	/* Pops the connection at the top of the stack. */
+	private void pop() {
+		disconnect();
+		relink(stackA[--depth]);
+	}
+	/* @return true if the fully connected state is a result. */
+	private boolean accept() {
+		if(!isConnected()) {
+			disconnected++;
+			return false;
+		}
+		if(tooManyLoops || (bridged && !isBridgesAccepted()) || (linked && !diagram.isLinked(connection))) {
+			return false;
+		}
+		if(topologies) {
+			symmetryFactor = automorphisms();
+			return symmetryFactor != 0;
+		}
+		return true;
+	}
+	/* Advances the search to the next diagram.
+	 * @return false if there are no more diagrams. */
+	private boolean advance() {
+		while(true) {
+			if(expand) {
+				if(--budget < 0 || timed && --untilDeadlineCheck < 0 && isPastDeadline()) {
+					budget = 0;
+					overBudget = true;
+					return false;
+				}
+				expand = false;
+				if(prev[size] == size) {
+					if(accept()) {
+						return true;
+					}
+				} else if(push()) {
+					expand = true;
+					continue;
+				}
+			}
+			if(depth == base) {
+				return false;
+			}
+			if(nextPartner()) {
+				expand = true;
+			} else {
+				relink(stackA[--depth]);
+			}
+		}
+	}
+	/* @return The nth valid partner after node c for the unlinked node at
+	 * the top of the stack, or the last if there are less than n. */
+	private int nextPartner(int c, int n) {
+		int a = stackA[depth - 1];
+		int partner = c;
+		for(c = prevOfParticle[c]; n > 0 && c < size && c > limit[depth - 1]; c = prevOfParticle[c]) {
+			if(isPartner(a, c)) {
+				partner = c;
+				n--;
+			}
+		}
+		return partner;
+	}
+	/* Connects the unlinked node at the top of the stack to node c. */
+	private void connect(int c) {
+		int a = stackA[depth - 1];
+		visited++;
+		unlink(c);
+		connection[a] = c;
+		connection[c] = a;
+		stackC[depth - 1] = c;
+		merged[depth - 1] = union(group[a], group[c]);
+	}
+	/* Undoes the connection at the top of the stack, leaving node a unlinked. */
+	private void disconnect() {
+		int a = stackA[depth - 1];
+		int c = stackC[depth - 1];
+		undoUnion(group[a], merged[depth - 1]);
+		connection[a] = -1;
+		connection[c] = -1;
+		relink(c);
+	}
+	/**
+	 * Splits off the diagrams before the middle remaining partner of the 
+	 * earliest connection in the stack that has remaining partners. If there
+	 * is no such connection the first few states are explored to make one.
+	 * This search is left with the remaining diagrams.
+	 * @return A search of the diagrams that come first in order,
+	 * or null if this search cannot be split.
+	 */
+	SubDiagramSearch split() {
+		for(int explored = 0; explored < 4; explored++) {
+			// Replay the stack so partners are counted in the state they were chosen
+			SubDiagramSearch first = new SubDiagramSearch(this);
+			while(depth > base) {
+				pop();
+			}
+			for(int frame = base; frame < first.depth; frame++) {
+				int a = prev[size];
+				unlink(a);
+				stackA[depth] = a;
+				limit[depth] = first.limit[frame];
+				depth++;
+				int c = first.stackC[frame];
+				int remaining = 0;
+				for(int p = nextPartner(c, 1); p != c; p = nextPartner(p, 1)) {
+					c = p;
+					remaining++;
+				}
+				c = first.stackC[frame];
+				if(remaining > 0) {
+					int partner = nextPartner(c, (remaining + 1) / 2);
+					first.base = frame;
+					first.limit[frame] = partner;
+					connect(partner);
+					expand = true;
+					ready = false;
+					return first;
+				}
+				connect(c);
+			}
+			expand = first.expand;
+			ready = first.ready;
+			if(!expand || prev[size] == size || !push()) {
+				return null;
+			}
+		}
+		return null;
+	}
+	/**
+	 * Splits the search into parts by splitting every part in turn, so
+	 * parts are of about the same depth in the search.
+	 * @param parts Most parts.
+	 * @return The cursor of each part in order, of which the diagrams are
+	 * those of this search. Indices of the parts after the first are not of
+	 * this search.
+	 */
+	List<String> partition(int parts) {
+		List<SubDiagramSearch> searches = new ArrayList<SubDiagramSearch>(parts);
+		searches.add(this);
+		boolean split = true;
+		while(split && searches.size() < parts) {
+			split = false;
+			for(int i = 0; i < searches.size() && searches.size() < parts; i++) {
+				SubDiagramSearch first = searches.get(i).split();
+				if(first != null) {
+					searches.add(i++, first);
+					split = true;
+				}
+			}
+		}
+		List<String> cursors = new ArrayList<String>(searches.size());
+		for(SubDiagramSearch search: searches) {
+			cursors.add(search.getCursor());
+		}
+		return cursors;
+	}
+	/* A key equal for states with the same number of completions. Vertices
+	 * are interchangeable, as are incoming/outgoing nodes of the same 
+	 * particle and direction, so the key is the multiset of components, each
+	 * a multiset of the unconnected nodes of it's groups. */
+	private String stateKey() {
+		if(constrained) {
+			return constrainedStateKey();
+		}
+		StringBuilder[] components = new StringBuilder[noOfGroups];
+		for(int i = 0; i < vertexBase; i++) {
+			if(connection[i] == -1) {
+				// Unconnected incoming/outgoing nodes are their own component
+				components[group[i]] = new StringBuilder().append((char) (8 + 64 * (vertex[i] + 2) + particle[i].ordinal()));
+			}
+		}
+		for(int v = 0; v < noOfVertices; v++) {
+			int mask = 0;
+			for(int slot = 0; slot < 3; slot++) {
+				if(connection[vertexBase + 3 * v + slot] == -1) {
+					mask |= 1 << slot;
+				}
+			}
+			if(mask != 0) {
+				int root = find(v);
+				if(components[root] == null) {
+					components[root] = new StringBuilder();
+				}
+				components[root].append((char) mask);
+			}
+		}
+		String[] keys = new String[noOfGroups];
+		int count = 0;
+		for(StringBuilder component: components) {
+			if(component != null) {
+				char[] chars = component.toString().toCharArray();
+				Arrays.sort(chars);
+				keys[count++] = new String(chars);
+			}
+		}
+		Arrays.sort(keys, 0, count);
+		StringBuilder key = new StringBuilder();
+		for(int i = 0; i < count; i++) {
+			key.append(keys[i]).append('|');
+		}
+		return key.toString();
+	}
+	/* Constraints are of particular nodes, which are no longer 
+	 * interchangeable, so the key is each unconnected node and the order its 
+	 * component is first seen. */
+	private String constrainedStateKey() {
+		int[] seen = new int[noOfGroups];
+		Arrays.fill(seen, -1);
+		int components = 0;
+		StringBuilder key = new StringBuilder();
+		for(int i = 0; i < size; i++) {
+			if(connection[i] == -1) {
+				int root = find(group[i]);
+				if(seen[root] == -1) {
+					seen[root] = components++;
+				}
+				key.append((char) i).append((char) seen[root]);
+			}
+		}
+		return key.toString();
+	}
+	/* Counts the results from the unexplored state at the top of the stack. 
+	 * @return The count, or -1 if there are more than maxStates states or
+	 * the count overflows. */
+	private long count(Map<String, Long> memo, int maxStates) {
+		if(prev[size] == size) {
+			return accept() ? 1 : 0;
+		}
+		String key = stateKey();
+		Long known = memo.get(key);
+		if(known != null) {
+			return known;
+		}
+		if(memo.size() >= maxStates) {
+			return -1;
+		}
+		long total = 0;
+		if(push()) {
+			do {
+				long count = count(memo, maxStates);
+				if(count == -1 || total > Long.MAX_VALUE - count) {
+					pop();
+					return -1;
+				}
+				total += count;
+			} while(nextPartner());
+			relink(stackA[--depth]);
+		}
+		memo.put(key, total);
+		return total;
+	}
+	/* @return a * b, or Long.MAX_VALUE on overflow. */
+	private static long multiply(long a, long b) {
+		return a > Long.MAX_VALUE / b ? Long.MAX_VALUE : a * b;
+	}
+	/* @return An upper bound of the number of results, the number of ways
+	 * unconnected nodes can be paired with their anti-particles. */
+	private long estimate() {
+		int[] counts = new int[NO_OF_PARTICLES];
+		for(int i = next[size]; i != size; i = next[i]) {
+			counts[particle[i].ordinal()]++;
+		}
+		long estimate = 1;
+		for(Particle p: Particle.values()) {
+			Particle anti = Particle.getAntiParticle(p);
+			int n = counts[p.ordinal()];
+			if(anti == p) {
+				// (n - 1)!! pairings
+				if(n % 2 == 1) {
+					return 0;
+				}
+				for(int k = n - 1; k > 1; k -= 2) {
+					estimate = multiply(estimate, k);
+				}
+			} else if(!Particle.isAnti(p)) {
+				// n! pairings with the anti-particles
+				if(n != counts[anti.ordinal()]) {
+					return 0;
+				}
+				for(int k = n; k > 1; k--) {
+					estimate = multiply(estimate, k);
+				}
+			}
+		}
+		return estimate;
+	}
+	/**
+	 * @param maxStates The most distinct search states to count before 
+	 * giving up on an exact count.
+	 * @return The number of results, or an upper bound if it could not 
+	 * be counted exactly. Must be called before the search is advanced.
+	 */
+	DiagramCount count(int maxStates) {
+		if(topologies) {
+			throw new UnsupportedOperationException();
+		}
+		long estimate = estimate();
+		if(estimate == 0 || tooManyLoops) {
+			return new DiagramCount(0, true);
+		}
+		if(bridged || linked) {
+			// Search states do not hold the sizes of closed parts, nor links, so can't be memoised
+			return new DiagramCount(estimate, false);
+		}
+		long count = count(new HashMap<String, Long>(), maxStates);
+		if(count == -1) {
+			return new DiagramCount(estimate, false);
+		}
+		return new DiagramCount(count, true);
+	}
+	/**
+	 * Moves the search so that the next result is the nth, by 0, in order.
+	 * Whole sub-trees are skipped using their count, so a seek only visits
+	 * the states on the path to the nth result. In topology mode, or if 
+	 * there are too many states to count, the results are stepped through.
+	 * @param n Index of the next result. If greater than the number of 
+	 * results the search is left with no more.
+	 */
+	void seek(long n) {
+		while(depth > base) {
+			pop();
+		}
+		expand = true;
+		ready = false;
+		index = n;
+		if(topologies || bridged || linked || !seekCounted(n)) {
+			while(depth > base) {
+				pop();
+			}
+			expand = true;
+			ready = false;
+			for(index = 0; index < n && hasNext(); index++) {
+				ready = false;
+			}
+		}
+	}
+	/* Seeks by counting from the unexplored state at the top of the stack.
+	 * @return false if a count could not be made. */
+	private boolean seekCounted(long n) {
+		if(memo == null) {
+			memo = new HashMap<String, Long>();
+		}
+		while(prev[size] != size) {
+			if(!push()) {
+				break;
+			}
+			while(true) {
+				long count = count(memo, MAX_SEEK_STATES);
+				if(count == -1) {
+					return false;
+				}
+				if(n < count) {
+					break;
+				}
+				n -= count;
+				if(!nextPartner()) {
+					relink(stackA[--depth]);
+					expand = false;
+					return true;
+				}
+			}
+		}
+		// Only a result when n is within range and the leaf is accepted
+		expand = false;
+		ready = prev[size] == size && n == 0 && accept();
+		return true;
+	}
+	/**
+	 * @param shareNodes see Diagram(Diagram, boolean)
+	 * @return The current diagram.
+	 */
+	Diagram current(boolean shareNodes) {
+		return new Diagram(diagram, connection, symmetryFactor, permutations / symmetryFactor, shareNodes);
+	}
+	public boolean hasNext() {
+		if(!ready) {
+			ready = advance();
+			SearchMetrics.add(visited, rejected, disconnected, emitted);
+			visited = 0;
+			rejected = 0;
+			disconnected = 0;
+			emitted = 0;
+		}
+		return ready;
+	}
+	public Diagram next() {
+		return next(true);
+	}
+	/**
+	 * @param shareNodes see Diagram(Diagram, boolean)
+	 * @return The next diagram, as next(), of which only one is made.
+	 */
+	Diagram next(boolean shareNodes) {
+		if(!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		ready = false;
+		index++;
+		emitted++;
+		return current(shareNodes);
+	}
+	/* Search state for the cursor. */
+	private static final int CURSOR_VERSION = 1;
+	private static final int EXPAND = 0;
+	private static final int EXPLORED = 1;
+	private static final int READY = 2;
+	private static final int TOPOLOGIES = 4;
+	private static final int LIMITS = 8;
+	/**
+	 * The cursor is the stack of partners chosen, so it grows with the 
+	 * number of nodes rather than the number of results.
+	 */
+	@Override
+	public String getCursor() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		boolean limited = false;
+		for(int frame = 0; frame < depth; frame++) {
+			limited |= limit[frame] != -1;
+		}
+		bytes.write(CURSOR_VERSION);
+		bytes.write((ready ? READY : expand ? EXPAND : EXPLORED) 
+				| (topologies ? TOPOLOGIES : 0) | (limited ? LIMITS : 0));
+		writeVarint(bytes, index);
+		writeVarint(bytes, base);
+		writeVarint(bytes, depth);
+		for(int frame = 0; frame < depth; frame++) {
+			writeVarint(bytes, stackC[frame]);
+		}
+		for(int frame = 0; limited && frame < depth; frame++) {
+			writeVarint(bytes, limit[frame] + 1);
+		}
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+	}
+	/**
+	 * Restores the state of a search of the same diagram. Must be called 
+	 * before the search is advanced.
+	 * @param cursor From getCursor().
+	 * @throws IllegalArgumentException If the cursor is not of a search of 
+	 * this diagram.
+	 */
+	void resume(String cursor) {
+		if(depth != 0 || !expand || ready) {
+			throw new IllegalStateException("Search already advanced");
+		}
+		try {
+			ByteArrayInputStream bytes = new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor));
+			if(bytes.read() != CURSOR_VERSION) {
+				throw new IllegalArgumentException("Unknown cursor version");
+			}
+			int flags = bytes.read();
+			if(flags == -1 || ((flags & TOPOLOGIES) != 0) != topologies) {
+				throw new IllegalArgumentException("Cursor of another search");
+			}
+			long index = readVarint(bytes);
+			if(index < 0) {
+				throw new IllegalArgumentException("Invalid cursor index");
+			}
+			int base = readInt(bytes, size / 2);
+			int depth = readInt(bytes, size / 2);
+			if(base > depth) {
+				throw new IllegalArgumentException("Cursor of another diagram");
+			}
+			int[] partners = new int[depth];
+			for(int frame = 0; frame < depth; frame++) {
+				partners[frame] = readInt(bytes, size - 1);
+			}
+			for(int frame = 0; frame < depth; frame++) {
+				limit[frame] = (flags & LIMITS) != 0 ? readInt(bytes, size) - 1 : -1;
+			}
+			for(int frame = 0; frame < depth; frame++) {
+				int a = prev[size];
+				int c = partners[frame];
+				if(a == size || c < 0 || c >= a || connection[c] != -1) {
+					throw new IllegalArgumentException("Cursor of another diagram");
+				}
+				unlink(a);
+				stackA[frame] = a;
+				this.depth++;
+				if(c <= limit[frame] || !isPartner(a, c)) {
+					relink(a);
+					this.depth--;
+					throw new IllegalArgumentException("Cursor of another diagram");
+				}
+				connect(c);
+			}
+			this.index = index;
+			this.base = base;
+			switch(flags & (READY | EXPLORED)) {
+				case EXPAND: 
+					break;
+				case EXPLORED:
+					expand = false;
+					break;
+				case READY:
+					if(prev[size] != size || !accept()) {
+						throw new IllegalArgumentException("Cursor of another diagram");
+					}
+					expand = false;
+					ready = true;
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown cursor state");
+			}
+		} catch(IllegalArgumentException e) {
+			while(depth > 0) {
+				pop();
+			}
+			base = 0;
+			index = 0;
+			throw e;
+		}
+	}
+	@Override
+	public void setBudget(long states, long millis) {
+		budget = states;
+		timed = millis != Long.MAX_VALUE;
+		deadline = timed ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis) : 0;
+		untilDeadlineCheck = 0;
+		overBudget = false;
+	}
+	private boolean isPastDeadline() {
+		untilDeadlineCheck = DEADLINE_CHECK_STATES;
+		return System.nanoTime() - deadline > 0;
+	}
+	@Override
+	public boolean isOverBudget() {
+		return overBudget;
+	}
+	@Override
+	public long getIndex() {
+		return index;
+	}
+	private static void writeVarint(ByteArrayOutputStream bytes, long value) {
+		while((value & ~0x7FL) != 0) {
+			bytes.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		bytes.write((int) value);
+	}
+	/* @return A varint of the cursor from 0 to max. */
+	private static int readInt(ByteArrayInputStream bytes, int max) {
+		long value = readVarint(bytes);
+		if(value < 0 || value > max) {
+			throw new IllegalArgumentException("Cursor of another diagram");
+		}
+		return (int) value;
+	}
+	private static long readVarint(ByteArrayInputStream bytes) {
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			int b = bytes.read();
+			if(b == -1) {
+				throw new IllegalArgumentException("Truncated cursor");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed cursor");
+	}
+}
@@ -0,0 +1,44 @@
+package feynman;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A Spliterator of sub-diagrams, split at the earliest connections of 
+ * the search. Diagrams do not share connections, so may be used in parallel.
+ * @author Alastair Crowe
+ */
+final class SubDiagramSpliterator implements Spliterator<Diagram> {
+	private final SubDiagramSearch search;
+	/* The number of diagrams is unknown, so the estimate is halved on each
+	 * split to stop a parallel stream splitting indefinitely. */
+	private long estimate;
+	SubDiagramSpliterator(SubDiagramSearch search) {
+		this(search, Long.MAX_VALUE);
+	}
+	private SubDiagramSpliterator(SubDiagramSearch search, long estimate) {
+		this.search = search;
+		this.estimate = estimate;
+	}
+	public boolean tryAdvance(Consumer<? super Diagram> action) {
+		if(!search.hasNext()) {
+			return false;
+		}
+		action.accept(search.next(false));
+		return true;
+	}
+	public Spliterator<Diagram> trySplit() {
+		SubDiagramSearch first = search.split();
+		if(first == null) {
+			return null;
+		}
+		estimate /= 2;
+		return new SubDiagramSpliterator(first, estimate);
+	}
+	public long estimateSize() {
+		return estimate;
+	}
+	public int characteristics() {
+		return ORDERED | NONNULL | IMMUTABLE;
+	}
+}
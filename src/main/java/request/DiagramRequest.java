@@ -0,0 +1,128 @@
+package request;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+
+import feynman.Diagram;
+import feynman.DiagramFilter;
+
+/**
+ * A java object representation of the JSON request of a process, shared
+ * by the servlets and the batch jobs, e.g. the data parameter of
+ * DiagramsServlet.
+ * @author Alastair Crowe
+ */
+public class DiagramRequest {
+	List<String> incomingElectrons;
+	List<String> incomingPositrons;
+	List<String> incomingPhotons;
+	List<String> outgoingElectrons;
+	List<String> outgoingPositrons;
+	List<String> outgoingPhotons;
+	List<String> interactions;
+	boolean topologies;
+	Integer maxLoops;
+	boolean noTadpoles;
+	boolean noSelfEnergies;
+	boolean onePI;
+	List<List<String>> pinned;
+	List<List<String>> forbidden;
+	/**
+	 * @return
+	 * A DiagramRequest from a JSON representation. Lists of names left out
+	 * are empty.
+	 */
+	public static DiagramRequest parseJson(String json) {
+		Gson gson = new Gson();
+		DiagramRequest diagReq = gson.fromJson(json, DiagramRequest.class);
+		diagReq.incomingElectrons = orEmpty(diagReq.incomingElectrons);
+		diagReq.incomingPositrons = orEmpty(diagReq.incomingPositrons);
+		diagReq.incomingPhotons = orEmpty(diagReq.incomingPhotons);
+		diagReq.outgoingElectrons = orEmpty(diagReq.outgoingElectrons);
+		diagReq.outgoingPositrons = orEmpty(diagReq.outgoingPositrons);
+		diagReq.outgoingPhotons = orEmpty(diagReq.outgoingPhotons);
+		diagReq.interactions = orEmpty(diagReq.interactions);
+		return diagReq;
+	}
+	private static List<String> orEmpty(List<String> names) {
+		return names == null ? new ArrayList<String>() : names;
+	}
+	/** @return Whether topologies rather than diagrams are requested. */
+	public boolean isTopologies() {
+		return topologies;
+	}
+	/** @return Whether the process has vertices, so may be crossed. */
+	public boolean hasInteractions() {
+		return !interactions.isEmpty();
+	}
+	/**
+	 * @return
+	 * The DiagramFilter of the request.
+	 */
+	public DiagramFilter toFilter() {
+		DiagramFilter filter = DiagramFilter.ALL;
+		if(maxLoops != null) {
+			filter = filter.maxLoops(maxLoops);
+		}
+		if(noTadpoles) {
+			filter = filter.noTadpoles();
+		}
+		if(noSelfEnergies) {
+			filter = filter.noSelfEnergies();
+		}
+		if(onePI) {
+			filter = filter.onePI();
+		}
+		return filter;
+	}
+	/**
+	 * @return
+	 * log10 of the number of ways to pair the nodes of the request, an
+	 * upper bound of the work to enumerate it, or 0 if it has no diagrams.
+	 */
+	public double estimateLog10Size() {
+		int vertices = interactions.size();
+		int electrons = incomingElectrons.size() + outgoingPositrons.size() + vertices;
+		int positrons = incomingPositrons.size() + outgoingElectrons.size() + vertices;
+		int photons = incomingPhotons.size() + outgoingPhotons.size() + vertices;
+		if(electrons != positrons || photons % 2 != 0) {
+			return 0;
+		}
+		double log10Size = 0;
+		for(int n = 2; n <= electrons; n++) {
+			log10Size += Math.log10(n);
+		}
+		for(int n = photons - 1; n > 1; n -= 2) {
+			log10Size += Math.log10(n);
+		}
+		return log10Size;
+	}
+	/**
+	 * @return
+	 * An unconnected Diagram of the request, with the pinned and forbidden
+	 * connections, each a pair of names.
+	 * @throws IllegalArgumentException If a constraint is not a pair of
+	 * names of nodes that can connect.
+	 */
+	public Diagram toDiagram() {
+		Diagram diagram = new Diagram(incomingElectrons, incomingPositrons,
+	  					   incomingPhotons,   outgoingElectrons,
+		  				   outgoingPositrons, outgoingPhotons,
+						   interactions);
+		for(List<String> pin: pinned == null ? new ArrayList<List<String>>() : pinned) {
+			if(pin.size() != 2) {
+				throw new IllegalArgumentException("A pin is a pair of names");
+			}
+			diagram = diagram.pin(pin.get(0), pin.get(1));
+		}
+		for(List<String> forbid: forbidden == null ? new ArrayList<List<String>>() : forbidden) {
+			if(forbid.size() != 2) {
+				throw new IllegalArgumentException("A forbidden connection is a pair of names");
+			}
+			diagram = diagram.forbid(forbid.get(0), forbid.get(1));
+		}
+		return diagram;
+	}
+}
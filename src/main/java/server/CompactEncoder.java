@@ -0,0 +1,79 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.gson.Gson;
+
+import feynman.Diagram;
+
+/**
+ * Encodes diagrams of one process compactly, @see decodeCompact in 
+ * autofeyn.js. The names and particles of the nodes are sent once, then
+ * each diagram as the connections that differ from the previous diagram.
+ * Connections are pairs of node indices, written as a URL safe base64 
+ * string of 5 bit varints. Not thread safe.
+ * @author Alastair Crowe
+ */
+class CompactEncoder {
+	private static final String DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+	private final int[] previous;
+	private final StringBuilder delta = new StringBuilder();
+	/**
+	 * @param process The diagram of which sub-diagrams are encoded.
+	 */
+	CompactEncoder(Diagram process) {
+		previous = new int[process.size()];
+		reset();
+	}
+	/**
+	 * @return The JSON object {names, particles} of the nodes of the process.
+	 */
+	static String header(Diagram process) {
+		String[] names = new String[process.size()];
+		String[] particles = new String[process.size()];
+		for(int i = 0; i < names.length; i++) {
+			names[i] = process.nameOf(i);
+			particles[i] = process.particleOf(i).name();
+		}
+		Map<String, Object> header = new LinkedHashMap<String, Object>();
+		header.put("names", names);
+		header.put("particles", particles);
+		return new Gson().toJson(header);
+	}
+	/**
+	 * Forgets the previous diagram, so the next is encoded in full.
+	 */
+	void reset() {
+		for(int i = 0; i < previous.length; i++) {
+			previous[i] = -1;
+		}
+	}
+	/**
+	 * @return The connections of the diagram that differ from the previous
+	 * diagram, as the gap from the last changed node and the node connected.
+	 */
+	String encode(Diagram diagram) {
+		delta.setLength(0);
+		int last = 0;
+		for(int i = 0; i < previous.length; i++) {
+			int connection = diagram.connectionOf(i);
+			if(connection != previous[i]) {
+				previous[i] = connection;
+				if(i < connection) {
+					writeVarint(i - last);
+					writeVarint(connection);
+					last = i;
+				}
+			}
+		}
+		return delta.toString();
+	}
+	private void writeVarint(int value) {
+		while(value >= 32) {
+			delta.append(DIGITS.charAt(32 | (value & 31)));
+			value >>>= 5;
+		}
+		delta.append(DIGITS.charAt(value));
+	}
+}
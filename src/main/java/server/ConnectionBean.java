@@ -3,31 +3,24 @@ package server;
 import java.io.Serializable;
 
 /**
- * A JSON list for each particle connection.
+ * The JSON jquery.feyn options of a diagram, @see DiagramLayout.
  * @author Alastair Crowe
  */
 @SuppressWarnings("javadoc")
 public class ConnectionBean implements Serializable{
 	private static final long serialVersionUID = 1L;
-	private String electronConnections;
-	private String positronConnections;
-	private String photonConnections;
-	public String getElectronConnections() {
-		return electronConnections;
+	private String layout;
+	private long multiplicity = 1;
+	public String getLayout() {
+		return layout;
 	}
-	public void setElectronConnections(String electronConnections) {
-		this.electronConnections = electronConnections;
+	public void setLayout(String layout) {
+		this.layout = layout;
 	}
-	public String getPositronConnections() {
-		return positronConnections;
+	public long getMultiplicity() {
+		return multiplicity;
 	}
-	public void setPositronConnections(String positronConnections) {
-		this.positronConnections = positronConnections;
-	}
-	public String getPhotonConnections() {
-		return photonConnections;
-	}
-	public void setPhotonConnections(String photonConnections) {
-		this.photonConnections = photonConnections;
+	public void setMultiplicity(long multiplicity) {
+		this.multiplicity = multiplicity;
 	}
 }
@@ -0,0 +1,68 @@
+package server;
+
+import feynman.Diagram;
+import feynman.PropagatorVisitor;
+import standardModel.Particle;
+
+/**
+ * Writes the connections of diagrams as JSON lists of "from-to" Strings,
+ * in one pass of each diagram. Not thread safe, the buffers are reused
+ * for each diagram.
+ * @author Alastair Crowe
+ */
+class ConnectionsJson implements PropagatorVisitor {
+	private final StringBuilder electrons = new StringBuilder();
+	private final StringBuilder photons = new StringBuilder();
+	/**
+	 * Writes the connections of the diagram, replacing the last.
+	 */
+	void write(Diagram diagram) {
+		electrons.setLength(0);
+		photons.setLength(0);
+		electrons.append('[');
+		photons.append('[');
+		diagram.visitPropagators(this);
+		electrons.append(']');
+		photons.append(']');
+	}
+	@Override
+	public void visit(String from, String to, Particle particle) {
+		StringBuilder json = particle == Particle.PHOTON ? photons : electrons;
+		if(json.length() > 1) {
+			json.append(',');
+		}
+		json.append('"');
+		escape(json, from);
+		json.append('-');
+		escape(json, to);
+		json.append('"');
+	}
+	/** @return The JSON list of electron connections. */
+	String getElectrons() {
+		return electrons.toString();
+	}
+	/** @return The JSON list of photon connections. */
+	String getPhotons() {
+		return photons.toString();
+	}
+	/* Appends the JSON string characters of the name, HTML safe as Gson. */
+	static void escape(StringBuilder json, String name) {
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			switch(c) {
+				case '"':  json.append("\\\""); break;
+				case '\\': json.append("\\\\"); break;
+				case '\n': json.append("\\n"); break;
+				case '\r': json.append("\\r"); break;
+				case '\t': json.append("\\t"); break;
+				default:
+					if(c < 0x20 || c == '<' || c == '>' || c == '&' || c == '=' || c == '\'' 
+							|| c == '\u2028' || c == '\u2029') {
+						json.append(String.format("\\u%04x", (int) c));
+					} else {
+						json.append(c);
+					}
+			}
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import feynman.Diagram;
+import standardModel.Particle;
+
+/**
+ * Lays out diagrams for jquery.feyn as autofeyn.js, so the client only
+ * draws them. Incoming nodes are spread down the left, outgoing down the
+ * right and vertices around an ellipse, propagators between the same
+ * nodes are a line and arcs. Layouts are of the canonical form of a
+ * diagram's topology, @see Diagram#getCanonicalLabels, and cached by it, 
+ * so are shared by every diagram of the same topology whatever the labels
+ * of it's vertices. Thread safe.
+ * @author Alastair Crowe
+ */
+class DiagramLayout {
+	/** Width and height of a layout, the svg is scaled to the diagram. */
+	static final int SIZE = 200;
+	private static final int FERMION = 0;
+	private static final int PHOTON = 1;
+	private static final int LINE = 0;
+	private static final int ARC = 1;
+	private static final String[] TYPES = {"fermion", "photon"};
+	private static final String[] SHAPES = {"line", "arc"};
+	/* Layouts by the propagators of the canonical form. */
+	private final LruCache<String, Layout> cache;
+	/**
+	 * Coordinates of each point, incoming then outgoing then vertices, and
+	 * the pairs of points of the propagators of each type and shape.
+	 */
+	private static class Layout {
+		final int[] xs;
+		final int[] ys;
+		/* From and to points of each propagator at 2 * type + shape. */
+		final int[][] paths;
+		Layout(int[] xs, int[] ys, int[][] paths) {
+			this.xs = xs;
+			this.ys = ys;
+			this.paths = paths;
+		}
+		/* Estimate of the bytes of the layout and it's key. */
+		long getWeight() {
+			long weight = 96 + 16L * xs.length;
+			for(int[] path: paths) {
+				weight += 16 + 8L * path.length;
+			}
+			return weight;
+		}
+	}
+	/**
+	 * @param maxBytes Most bytes of cached layouts.
+	 */
+	DiagramLayout(long maxBytes) {
+		cache = new LruCache<String, Layout>(maxBytes, Layout::getWeight);
+	}
+	/** @return The cache of layouts. */
+	LruCache<String, ?> getCache() {
+		return cache;
+	}
+	/**
+	 * @param diagram A fully connected diagram.
+	 * @return The jquery.feyn options of the diagram as JSON, e.g.:
+	 * {"width":200,"height":200,"incoming":{"i0":"0,100"},"outgoing":{},
+	 *  "vertex":{"v0":"100,100"},"fermion":{"line":"i0-v0","arc":""},
+	 *  "photon":{"line":"","arc":""}}
+	 */
+	String toJson(Diagram diagram) {
+		int incoming = diagram.getNoOfIncoming();
+		int outgoing = diagram.getNoOfOutgoing();
+		int vertices = diagram.getNoOfVertices();
+		int externals = incoming + outgoing;
+		// The node of the canonical form of each node of the diagram, and back
+		int[] labels = diagram.getCanonicalLabels();
+		int[] toCanonical = new int[diagram.size()];
+		int[] fromCanonical = new int[diagram.size()];
+		for(int i = 0; i < toCanonical.length; i++) {
+			toCanonical[i] = i < externals ? i : externals + 3 * labels[(i - externals) / 3] + (i - externals) % 3;
+			fromCanonical[toCanonical[i]] = i;
+		}
+		// Names of the diagram at the points of the canonical form
+		String[] names = new String[externals + vertices];
+		for(int i = 0; i < names.length; i++) {
+			names[i] = diagram.nameOf(fromCanonical[i < externals ? i : externals + 3 * (i - externals)]);
+		}
+		// Fermions then photons of the canonical form, the order of the connections of autofeyn
+		List<int[]> propagators = new ArrayList<int[]>(toCanonical.length / 2);
+		List<int[]> photons = new ArrayList<int[]>(toCanonical.length / 4);
+		StringBuilder key = new StringBuilder(8 * toCanonical.length);
+		key.append(incoming).append(',').append(outgoing).append(',').append(vertices).append(':');
+		for(int i = 0; i < toCanonical.length; i++) {
+			Particle particle = diagram.particleOf(fromCanonical[i]);
+			int to = toCanonical[diagram.connectionOf(fromCanonical[i])];
+			if(!Particle.isAnti(particle) && (particle != diagram.particleOf(fromCanonical[to]) || i < to)) {
+				int type = particle == Particle.PHOTON ? PHOTON : FERMION;
+				(type == PHOTON ? photons : propagators).add(new int[] {pointOf(i, externals), pointOf(to, externals), type});
+			}
+		}
+		propagators.addAll(photons);
+		for(int[] propagator: propagators) {
+			key.append(propagator[2] == PHOTON ? 'p' : 'f').append(propagator[0]).append('-').append(propagator[1]).append(',');
+		}
+		String topology = key.toString();
+		Layout layout = cache.get(topology);
+		if(layout == null) {
+			layout = layout(incoming, outgoing, vertices, propagators);
+			cache.put(topology, layout);
+		}
+		return toJson(layout, names, incoming, outgoing);
+	}
+	/* The point of a node, incoming then outgoing then vertices. */
+	private static int pointOf(int node, int externals) {
+		return node < externals ? node : externals + (node - externals) / 3;
+	}
+	/* The options of the layout with the names of the points. */
+	private static String toJson(Layout layout, String[] names, int incoming, int outgoing) {
+		StringBuilder json = new StringBuilder(256);
+		json.append("{\"width\":").append(SIZE).append(",\"height\":").append(SIZE);
+		json.append(",\"incoming\":");
+		appendPoints(json, layout, names, 0, incoming);
+		json.append(",\"outgoing\":");
+		appendPoints(json, layout, names, incoming, incoming + outgoing);
+		json.append(",\"vertex\":");
+		appendPoints(json, layout, names, incoming + outgoing, names.length);
+		for(int type = 0; type < TYPES.length; type++) {
+			json.append(",\"").append(TYPES[type]).append("\":{");
+			for(int shape = 0; shape < SHAPES.length; shape++) {
+				json.append(shape == 0 ? "\"" : ",\"").append(SHAPES[shape]).append("\":\"");
+				int[] path = layout.paths[2 * type + shape];
+				for(int i = 0; i < path.length; i += 2) {
+					if(i > 0) {
+						json.append(',');
+					}
+					ConnectionsJson.escape(json, names[path[i]]);
+					json.append('-');
+					ConnectionsJson.escape(json, names[path[i + 1]]);
+				}
+				json.append('"');
+			}
+			json.append('}');
+		}
+		return json.append('}').toString();
+	}
+	private static void appendPoints(StringBuilder json, Layout layout, String[] names, int from, int to) {
+		json.append('{');
+		for(int i = from; i < to; i++) {
+			json.append(i == from ? "\"" : ",\"");
+			ConnectionsJson.escape(json, names[i]);
+			json.append("\":\"").append(layout.xs[i]).append(',').append(layout.ys[i]).append('"');
+		}
+		json.append('}');
+	}
+	/**
+	 * Places the points and groups the propagators, as autofeyn and
+	 * particles of autofeyn.js.
+	 * @param propagators From point, to point and type of each propagator.
+	 */
+	private static Layout layout(int incoming, int outgoing, int vertices, List<int[]> propagators) {
+		int points = incoming + outgoing + vertices;
+		int[] xs = new int[points];
+		int[] ys = new int[points];
+		for(int i = 0; i < incoming; i++) {
+			ys[i] = line(i, incoming, SIZE);
+		}
+		for(int i = 0; i < outgoing; i++) {
+			xs[incoming + i] = SIZE;
+			ys[incoming + i] = line(i, outgoing, SIZE);
+		}
+		for(int i = 0; i < vertices; i++) {
+			int point = incoming + outgoing + i;
+			if(vertices == 1) {
+				xs[point] = SIZE / 2;
+				ys[point] = SIZE / 2;
+			} else {
+				double t = 2 * Math.PI * i / vertices;
+				xs[point] = (int) Math.floor(SIZE / 4.0 * Math.cos(t) + SIZE / 2.0);
+				ys[point] = (int) Math.floor(SIZE / 4.0 * Math.sin(t) + SIZE / 2.0);
+			}
+		}
+		// Propagators between the same points, either way, are a line and arcs
+		List<List<int[]>> paths = new ArrayList<List<int[]>>(4);
+		for(int i = 0; i < 4; i++) {
+			paths.add(new ArrayList<int[]>());
+		}
+		List<int[]> remaining = new ArrayList<int[]>(propagators);
+		while(!remaining.isEmpty()) {
+			int[] first = remaining.get(0);
+			List<int[]> same = new ArrayList<int[]>(2);
+			List<int[]> reversed = new ArrayList<int[]>(2);
+			for(int[] propagator: remaining) {
+				if(propagator[0] == first[0] && propagator[1] == first[1]) {
+					same.add(propagator);
+				} else if(propagator[0] == first[1] && propagator[1] == first[0]) {
+					reversed.add(propagator);
+				}
+			}
+			switch(same.size() + "-" + reversed.size()) {
+				case "1-0":
+					add(paths, same.get(0), LINE);
+					break;
+				case "1-1":
+					add(paths, same.get(0), ARC);
+					add(paths, reversed.get(0), ARC);
+					break;
+				case "1-2":
+					add(paths, same.get(0), ARC);
+					add(paths, reversed.get(0), LINE);
+					add(paths, reversed.get(1), ARC);
+					break;
+				case "2-0":
+					add(paths, same.get(0), LINE);
+					add(paths, same.get(1), ARC);
+					break;
+				case "2-1":
+					add(paths, same.get(0), LINE);
+					add(paths, same.get(1), ARC);
+					add(paths, reversed.get(0), ARC);
+					break;
+				default:
+					// Not possible for electromagnetic feynman diagrams
+					break;
+			}
+			remaining.removeAll(same);
+			remaining.removeAll(reversed);
+		}
+		int[][] pairs = new int[4][];
+		for(int i = 0; i < 4; i++) {
+			List<int[]> path = paths.get(i);
+			pairs[i] = new int[2 * path.size()];
+			for(int j = 0; j < path.size(); j++) {
+				pairs[i][2 * j] = path.get(j)[0];
+				pairs[i][2 * j + 1] = path.get(j)[1];
+			}
+		}
+		return new Layout(xs, ys, pairs);
+	}
+	/* Adds the propagator to the paths, photon arcs reversed as autofeyn.js. */
+	private static void add(List<List<int[]>> paths, int[] propagator, int shape) {
+		boolean reverse = propagator[2] == PHOTON && shape == ARC;
+		paths.get(2 * propagator[2] + shape).add(reverse ? new int[] {propagator[1], propagator[0]} : propagator);
+	}
+	/* Distributes points along a line. */
+	private static int line(int index, int total, int length) {
+		return (int) Math.floor(total > 1 ? index * (double) length / (total - 1) : length / 2.0);
+	}
+}
@@ -0,0 +1,68 @@
+package server;
+
+import java.io.Serializable;
+import java.util.List;
+
+import feynman.Diagram;
+
+/**
+ * A page of sub-diagrams of a process. Diagrams keep the names of the
+ * request they were calculated for, and are relabelled for others.
+ * @author Alastair Crowe
+ */
+@SuppressWarnings("javadoc")
+public class DiagramPage implements Serializable {
+	private static final long serialVersionUID = 1L;
+	/* Approximate bytes of a page and each node of a diagram. */
+	private static final long PAGE_BYTES = 256;
+	private static final long NODE_BYTES = 48;
+	private final List<Diagram> diagrams;
+	private final long index;
+	private final boolean more;
+	private final String cursor;
+	private final Long total;
+	private final boolean totalExact;
+	/**
+	 * @param diagrams Diagrams that do not share connections.
+	 * @param index Index of the first diagram.
+	 * @param more True if there are more diagrams after the page.
+	 * @param cursor Cursor of the next page.
+	 * @param total Total number of diagrams, or null if not counted.
+	 * @param totalExact True if the total is exact, not an upper bound.
+	 */
+	public DiagramPage(List<Diagram> diagrams, long index, boolean more, String cursor, 
+			Long total, boolean totalExact) {
+		this.diagrams = diagrams;
+		this.index = index;
+		this.more = more;
+		this.cursor = cursor;
+		this.total = total;
+		this.totalExact = totalExact;
+	}
+	public List<Diagram> getDiagrams() {
+		return diagrams;
+	}
+	public long getIndex() {
+		return index;
+	}
+	public boolean isMore() {
+		return more;
+	}
+	public String getCursor() {
+		return cursor;
+	}
+	public Long getTotal() {
+		return total;
+	}
+	public boolean isTotalExact() {
+		return totalExact;
+	}
+	/** @return An estimate of the bytes used by the page. */
+	public long getWeight() {
+		long weight = PAGE_BYTES + 2 * cursor.length();
+		for(Diagram diagram: diagrams) {
+			weight += PAGE_BYTES + NODE_BYTES * diagram.size();
+		}
+		return weight;
+	}
+}
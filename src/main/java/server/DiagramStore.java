@@ -0,0 +1,219 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import feynman.Diagram;
+import feynman.DiagramFilter;
+import feynman.DiagramIterator;
+import request.DiagramRequest;
+
+/**
+ * Every diagram of one process, enumerated once and written to a file,
+ * which is memory mapped to answer page requests without a search.
+ * The file is:
+ * header - magic, version, key, whether topologies, nodes per diagram,
+ * records - symmetry factor, multiplicity and the connection of each node
+ * of each diagram, in order of the search, of fixed width,
+ * page index - the cursor after each page of PAGE_SIZE diagrams,
+ * trailer - number of diagrams and offset of the page index.
+ * Write with main, @see DiagramsServlet#init for where stores are read.
+ * Thread safe once opened, the mapping is only read by absolute position.
+ * @author Alastair Crowe
+ */
+class DiagramStore {
+	/** Diagrams per page, as DiagramsServlet. */
+	static final int PAGE_SIZE = 9;
+	private static final int MAGIC = 0x4645594E; // "FEYN"
+	private static final int VERSION = 1;
+	private static final int TRAILER_BYTES = 16;
+	private final String key;
+	private final boolean topologies;
+	private final int size;
+	private final long count;
+	private final ByteBuffer records;
+	private final int recordBytes;
+	/* Cursor after each page, and the index of the diagram at each cursor. */
+	private final String[] cursors;
+	private final Map<String, Long> indices;
+	/**
+	 * Maps the store file.
+	 * @throws IOException If the file cannot be read or is not a store.
+	 */
+	DiagramStore(File file) throws IOException {
+		MappedByteBuffer buffer;
+		try(RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("Store of more than 2GB: " + file);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		try {
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not a diagram store: " + file);
+			}
+			key = readString(buffer);
+			topologies = buffer.get() != 0;
+			size = buffer.getInt();
+			recordBytes = 12 + 2 * size;
+			int recordsOffset = buffer.position();
+			count = buffer.getLong(buffer.limit() - TRAILER_BYTES);
+			buffer.position((int) buffer.getLong(buffer.limit() - TRAILER_BYTES + 8));
+			cursors = new String[buffer.getInt()];
+			indices = new HashMap<String, Long>(cursors.length * 2);
+			for(int page = 0; page < cursors.length; page++) {
+				cursors[page] = readString(buffer);
+				indices.put(cursors[page], Math.min(count, (page + 1L) * PAGE_SIZE));
+			}
+			buffer.position(recordsOffset);
+			records = buffer.slice();
+		} catch(RuntimeException e) {
+			throw new IOException("Corrupt diagram store: " + file, e);
+		}
+	}
+	/**
+	 * @return The key of pages of the store, signature + any constraints +
+	 * "|t|" or "|d|" + filter, as DiagramsServlet without the page.
+	 */
+	static String keyOf(Diagram process, boolean topologies, DiagramFilter filter) {
+		String constraints = process.isConstrained() ? "|" + process.getConstraints() : "";
+		return process.getSignature() + constraints + (topologies ? "|t|" : "|d|") + filter;
+	}
+	String getKey() {
+		return key;
+	}
+	long getCount() {
+		return count;
+	}
+	/**
+	 * @param process A diagram of the process of the store, of which names
+	 * the diagrams have.
+	 * @param cursor Cursor of a page of the store, or null to start at from.
+	 * @param from Index of the first diagram, if there is no cursor.
+	 * @return The page of PAGE_SIZE diagrams, with the total if from the
+	 * start, or null if the cursor is not in the store.
+	 */
+	DiagramPage getPage(Diagram process, String cursor, long from) {
+		if(cursor != null) {
+			Long index = indices.get(cursor);
+			if(index == null) {
+				return null;
+			}
+			from = index;
+		}
+		if(from > count) {
+			return null;
+		}
+		long to = Math.min(count, from + PAGE_SIZE);
+		List<Diagram> diagrams = new ArrayList<Diagram>((int) (to - from));
+		for(long index = from; index < to; index++) {
+			diagrams.add(readDiagram(process, index));
+		}
+		// The cursor after the page, pages from a cursor start on a page
+		String next = to == count ? cursors[cursors.length - 1]
+				: from % PAGE_SIZE == 0 ? cursors[(int) (from / PAGE_SIZE)] : null;
+		if(next == null) {
+			return null;
+		}
+		Long total = cursor == null && from == 0 && !topologies ? count : null;
+		return new DiagramPage(diagrams, from, to < count, next, total, true);
+	}
+	private Diagram readDiagram(Diagram process, long index) {
+		int position = (int) (index * recordBytes);
+		int[] connections = new int[size];
+		for(int i = 0; i < size; i++) {
+			connections[i] = records.getShort(position + 12 + 2 * i);
+		}
+		return process.connect(connections, records.getInt(position), records.getLong(position + 4));
+	}
+	/**
+	 * Enumerates every diagram of the process and writes the store.
+	 * @return The number of diagrams written.
+	 */
+	static long write(Diagram process, boolean topologies, DiagramFilter filter, File file) throws IOException {
+		int size = process.size();
+		if(size > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many nodes for a store");
+		}
+		DiagramIterator itr = topologies ? process.searchTopologies(filter) : process.searchSubDiagrams(filter);
+		List<String> cursors = new ArrayList<String>();
+		long count = 0;
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, keyOf(process, topologies, filter));
+			out.writeBoolean(topologies);
+			out.writeInt(size);
+			int headerBytes = out.size();
+			while(itr.hasNext()) {
+				Diagram diagram = itr.next();
+				out.writeInt(diagram.getSymmetryFactor());
+				out.writeLong(diagram.getMultiplicity());
+				for(int i = 0; i < size; i++) {
+					out.writeShort(diagram.connectionOf(i));
+				}
+				// The cursor after hasNext, as the cursor of a page of DiagramsServlet
+				if(++count % PAGE_SIZE == 0 && itr.hasNext()) {
+					cursors.add(itr.getCursor());
+				}
+			}
+			if(cursors.size() * (long) PAGE_SIZE < count || count == 0) {
+				cursors.add(itr.getCursor());
+			}
+			long indexOffset = headerBytes + count * (12 + 2 * size);
+			out.writeInt(cursors.size());
+			for(String cursor: cursors) {
+				writeString(out, cursor);
+			}
+			out.writeLong(count);
+			out.writeLong(indexOffset);
+		}
+		if(file.length() > Integer.MAX_VALUE) {
+			throw new IOException("Store of more than 2GB: " + file);
+		}
+		return count;
+	}
+	/* DataOutput.writeUTF is limited to 64KB, cursors of large searches are not. */
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	/**
+	 * Writes a store of the crossing family of a process, as read by 
+	 * DiagramsServlet.
+	 * @param args The file of a JSON request, as the data parameter of
+	 * DiagramsServlet, and the store file to write.
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length != 2) {
+			System.err.println("Usage: DiagramStore request.json process.store");
+			System.exit(1);
+		}
+		String json = new String(Files.readAllBytes(new File(args[0]).toPath()), StandardCharsets.UTF_8);
+		DiagramRequest diagReq = DiagramRequest.parseJson(json);
+		long start = System.nanoTime();
+		long count = write(diagReq.toDiagram().allIncoming(), diagReq.isTopologies(),
+				diagReq.toFilter(), new File(args[1]));
+		System.out.println("Wrote " + count + " diagrams in "
+				+ (System.nanoTime() - start) / 1000000 + "ms to " + args[1]);
+	}
+}
@@ -0,0 +1,237 @@
+package server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+
+import feynman.Diagram;
+import feynman.DiagramFilter;
+import feynman.DiagramIterator;
+import request.DiagramRequest;
+
+/**
+ * Streams Feynman Diagrams as they are found, one JSON object each, as 
+ * newline delimited JSON or server-sent events.
+ * @author Alastair Crowe
+ */
+public class DiagramStreamServlet extends HttpServlet {
+	private static final long serialVersionUID = 1L;
+	private static final Gson GSON = new Gson();
+	/* Default most diagrams and budget of the search of a request, @see init. */
+	private static final long DEFAULT_MAX_LIMIT = 100000;
+	private static final long DEFAULT_STREAM_STATES = 1 << 26;
+	private static final long DEFAULT_STREAM_MILLIS = 30000;
+	private long maxLimit;
+	private long streamStates;
+	private long streamMillis;
+	/**
+	 * Reads the most diagrams of a request, the maxLimit init parameter,
+	 * and the budget of it's search, streamStates and streamMillis. A 
+	 * request that reaches either ends with more and the cursor to continue.
+	 */
+	@Override
+	public void init() throws ServletException {
+		maxLimit = getLongParameter("maxLimit", DEFAULT_MAX_LIMIT);
+		streamStates = getLongParameter("streamStates", DEFAULT_STREAM_STATES);
+		streamMillis = getLongParameter("streamMillis", DEFAULT_STREAM_MILLIS);
+	}
+	private long getLongParameter(String name, long defaultValue) {
+		String value = getInitParameter(name);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+	/**
+	 * @return A JSON object of the diagram and it's index.
+	 */
+	private String toJson(Diagram diagram, long index, ConnectionsJson json) {
+		json.write(diagram);
+		return "{\"index\":" + index + ",\"electron\":" + json.getElectrons() + ",\"positron\":[]"
+				+ ",\"photon\":" + json.getPhotons() + ",\"multiplicity\":" + diagram.getMultiplicity() + "}";
+	}
+	/**
+	 * @return A JSON object of the diagram crossed to each process of it's
+	 * family, and it's index.
+	 */
+	private String toJson(Diagram diagram, long index, List<Diagram> crossings, ConnectionsJson json) {
+		StringBuilder crossed = new StringBuilder("{\"index\":").append(index).append(",\"crossings\":[");
+		for(int i = 0; i < crossings.size(); i++) {
+			json.write(diagram.cross(crossings.get(i)));
+			crossed.append(i == 0 ? "" : ",").append("{\"electron\":").append(json.getElectrons())
+			       .append(",\"positron\":[],\"photon\":").append(json.getPhotons()).append('}');
+		}
+		return crossed.append("],\"multiplicity\":").append(diagram.getMultiplicity()).append('}').toString();
+	}
+	/**
+	 * Writes an event or line of JSON.
+	 */
+	private void write(PrintWriter out, boolean events, String event, String json) {
+		if(events) {
+			out.write("event: " + event + "\ndata: " + json + "\n\n");
+		} else {
+			out.write(json + "\n");
+		}
+	}
+	/**
+	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
+	 * @param request
+	 * required http request parameters:
+	 * request.data - JSON incomplete diagram object, 
+	 * @see DiagramRequest
+	 * optional http request parameters:
+	 * request.cursor - the cursor to continue from.
+	 * request.index - the index of the first diagram, if there is no cursor.
+	 * request.limit - the most diagrams to send, at least 1, at most and by
+	 * default maxLimit. The search is also limited by a budget, @see init.
+	 * request.flush - flush after this many diagrams, 1 by default, or 
+	 * only when the response buffer is full if 0.
+	 * request.format - "sse" for server-sent events, otherwise NDJSON.
+	 * request.encoding - "compact" for the names of the process once as 
+	 * {names, particles}, then each diagram as {delta, multiplicity}, 
+	 * @see CompactEncoder. Otherwise each diagram is sent as {index, 
+	 * electron, positron, photon, multiplicity}.
+	 * request.crossings - "true" for every process of the crossing family
+	 * of the process, searched once, @see Diagram#getCrossings. The 
+	 * signature of each process is sent first as {crossings}, then each 
+	 * diagram as {index, crossings, multiplicity} with the electron, 
+	 * positron and photon connections of each process. Not compact.
+	 * Finally {more, cursor} is sent with the cursor of the next diagram.
+	 * Sending stops if the client disconnects. The timings of the request
+	 * are recorded in ServerMetrics, with writing to the client as render.
+	 */
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		long start = System.nanoTime();
+		DiagramRequest diagReq = DiagramRequest.parseJson(request.getParameter("data"));
+		Diagram diagram;
+		try {
+			diagram = diagReq.toDiagram();
+		} catch(IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		if(diagReq.isTopologies() && diagram.isConstrained()) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Topologies cannot be constrained");
+			return;
+		}
+		List<Diagram> crossings = null;
+		if("true".equals(request.getParameter("crossings"))) {
+			if(!diagReq.hasInteractions()) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Crossings of a process without vertices");
+				return;
+			}
+			crossings = diagram.getCrossings();
+			diagram = crossings.get(0);
+		}
+		DiagramFilter filter = diagReq.toFilter();
+		String cursor = request.getParameter("cursor");
+		String index = request.getParameter("index");
+		String limitParam = request.getParameter("limit");
+		String flushParam = request.getParameter("flush");
+		long limit;
+		int flush;
+		long from;
+		try {
+			limit = limitParam == null ? maxLimit : Math.min(maxLimit, Long.parseLong(limitParam));
+			flush = flushParam == null ? 1 : Integer.parseInt(flushParam);
+			from = index == null ? 0 : Long.parseLong(index);
+		} catch(NumberFormatException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Not a number: " + e.getMessage());
+			return;
+		}
+		if(limit <= 0 || flush < 0 || from < 0) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Limit must be positive, flush and index not negative");
+			return;
+		}
+		boolean events = "sse".equals(request.getParameter("format"));
+		boolean compact = crossings == null && "compact".equals(request.getParameter("encoding"));
+		DiagramIterator itr;
+		try {
+			if(cursor != null) {
+				itr = diagReq.isTopologies() ? diagram.searchTopologies(filter, cursor) : diagram.searchSubDiagrams(filter, cursor);
+			} else {
+				itr = diagReq.isTopologies() ? diagram.searchTopologies(filter, from) : diagram.searchSubDiagrams(filter, from);
+			}
+		} catch(IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		itr.setBudget(streamStates, streamMillis);
+		long parsed = System.nanoTime();
+		response.setContentType(events ? "text/event-stream" : "application/x-ndjson");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		PrintWriter out = response.getWriter();
+		ConnectionsJson json = new ConnectionsJson();
+		CompactEncoder encoder = null;
+		if(compact) {
+			encoder = new CompactEncoder(diagram);
+			write(out, events, "process", CompactEncoder.header(diagram));
+		} else if(crossings != null) {
+			List<String> signatures = new ArrayList<String>(crossings.size());
+			for(Diagram crossing: crossings) {
+				signatures.add(crossing.getSignature());
+			}
+			Map<String, Object> header = new LinkedHashMap<String, Object>();
+			header.put("crossings", signatures);
+			write(out, events, "crossings", GSON.toJson(header));
+		}
+		// Send each diagram as it's found, stopping if the client has gone.
+		// Without flushes the client is checked as often as the buffer fills.
+		long unchecked = 0;
+		long enumerate = 0;
+		long serialise = 0;
+		long render = 0;
+		String endCursor = null;
+		for(long sent = 0; ; sent++) {
+			long before = System.nanoTime();
+			if(sent >= limit || !itr.hasNext()) {
+				Map<String, Object> end = new LinkedHashMap<String, Object>();
+				end.put("more", itr.hasNext() || itr.isOverBudget());
+				endCursor = itr.getCursor();
+				end.put("cursor", endCursor);
+				long ended = System.nanoTime();
+				enumerate += ended - before;
+				write(out, events, "end", GSON.toJson(end));
+				out.flush();
+				render += System.nanoTime() - ended;
+				break;
+			}
+			long diagramIndex = itr.getIndex();
+			Diagram subDiagram = itr.next();
+			long found = System.nanoTime();
+			enumerate += found - before;
+			String diagramJson;
+			if(compact) {
+				diagramJson = "{\"delta\":\"" + encoder.encode(subDiagram) 
+						+ "\",\"multiplicity\":" + subDiagram.getMultiplicity() + "}";
+			} else if(crossings != null) {
+				diagramJson = toJson(subDiagram, diagramIndex, crossings, json);
+			} else {
+				diagramJson = toJson(subDiagram, diagramIndex, json);
+			}
+			long serialised = System.nanoTime();
+			serialise += serialised - found;
+			write(out, events, "diagram", diagramJson);
+			unchecked += diagramJson.length();
+			boolean disconnected = false;
+			if(flush > 0 ? (sent + 1) % flush == 0 : unchecked >= response.getBufferSize()) {
+				unchecked = 0;
+				disconnected = out.checkError();
+			}
+			render += System.nanoTime() - serialised;
+			if(disconnected) {
+				break;
+			}
+		}
+		ServerMetrics.get().record(diagram.getSignature(), parsed - start, enumerate, serialise, render, endCursor);
+	}
+}
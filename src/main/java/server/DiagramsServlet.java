@@ -1,23 +1,25 @@
 package server;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
-
-import com.google.gson.Gson;
 
 import feynman.Diagram;
-import standardModel.Particle;
+import feynman.DiagramCount;
+import feynman.DiagramFilter;
+import feynman.DiagramIterator;
+import request.DiagramRequest;
 
 /**
  * Creates and forwards to Diagrams.jsp, a page of Feynman Diagrams. 
@@ -25,93 +27,257 @@ import standardModel.Particle;
  */
 public class DiagramsServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
+	/* Default most bytes of cached pages, and of prefetching, @see init. */
+	private static final long DEFAULT_CACHE_BYTES = 16 << 20;
+	private static final long DEFAULT_LAYOUT_BYTES = 1 << 20;
+	private static final int DEFAULT_PREFETCH_THREADS = 2;
+	private static final int DEFAULT_PREFETCH_PAGES = 2;
+	private static final long DEFAULT_PREFETCH_IDLE_MILLIS = 30000;
+	/* Default budget of the search of a page, and admission control, @see init. */
+	private static final long DEFAULT_PAGE_STATES = 1 << 22;
+	private static final long DEFAULT_PAGE_MILLIS = 2000;
+	private static final double DEFAULT_MAX_LOG10_SIZE = 100;
+	private static final double DEFAULT_HEAVY_LOG10_SIZE = 8;
+	private static final int DEFAULT_HEAVY_PERMITS = 2;
+	private static final long DEFAULT_HEAVY_WAIT_MILLIS = 2000;
+	/* Pages by process signature, shared by all users. */
+	private LruCache<String, DiagramPage> cache;
+	/* Layouts of diagrams by topology, shared by all users. */
+	private DiagramLayout layout;
+	/* Calculates pages once, and the next pages in the background. */
+	private PagePrefetcher prefetcher;
+	/* Most work of the search of a page, after which the page is partial. */
+	private long pageStates;
+	private long pageMillis;
+	/* Processes above the max size are rejected, those above the heavy 
+	 * size share the permits, @see DiagramRequest#estimateLog10Size. */
+	private double maxLog10Size;
+	private double heavyLog10Size;
+	private Semaphore heavyRequests;
+	private long heavyWaitMillis;
+	/* Precomputed processes by DiagramStore key. */
+	private final Map<String, DiagramStore> stores = new HashMap<String, DiagramStore>();
 	/**
-	 * A java object representation of the JSON request parameter.
+	 * @return
+	 * A ConnectionBean of the layout of the diagram.
 	 */
-	static class DiagramRequest {
-		List<String> incomingElectrons;
-		List<String> incomingPositrons;
-		List<String> incomingPhotons;
-		List<String> outgoingElectrons;
-		List<String> outgoingPositrons;
-		List<String> outgoingPhotons;
-		List<String> interactions;
+	private ConnectionBean toConnections(Diagram diagram) {
+		ConnectionBean connections = new ConnectionBean();
+		connections.setLayout(layout.toJson(diagram));
+		connections.setMultiplicity(diagram.getMultiplicity());
+		return connections;
 	}
 	/**
-	 * @return List of "key-value" Strings
+	 * Creates the page cache, of at most the cacheBytes init parameter, the
+	 * layout cache of at most layoutBytes, the prefetcher of the next 
+	 * prefetchPages pages by prefetchThreads threads until idle for 
+	 * prefetchIdleMillis, the budget of a page of pageStates and pageMillis,
+	 * admission control of the maxLog10Size, heavyLog10Size, heavyPermits
+	 * and heavyWaitMillis, and maps each .store file of the 
+	 * storeDir init parameter, a path in the web application, 
+	 * @see DiagramStore#main.
 	 */
-	private List<String> map2list(Map<String, String> map) {
-		List<String> list = new ArrayList<String>(map.size());
-		for (Map.Entry<String, String> entry : map.entrySet()) {
-		    String key = entry.getKey();
-		    String value = entry.getValue();
-		    list.add(key + "-" + value);
+	@Override
+	public void init() throws ServletException {
+		String cacheBytes = getInitParameter("cacheBytes");
+		long maxWeight = cacheBytes == null ? DEFAULT_CACHE_BYTES : Long.parseLong(cacheBytes);
+		cache = new LruCache<String, DiagramPage>(maxWeight, DiagramPage::getWeight);
+		ServerMetrics.get().setCache(cache);
+		layout = new DiagramLayout(getLongParameter("layoutBytes", DEFAULT_LAYOUT_BYTES));
+		prefetcher = new PagePrefetcher(cache, 
+				getIntParameter("prefetchThreads", DEFAULT_PREFETCH_THREADS),
+				getIntParameter("prefetchPages", DEFAULT_PREFETCH_PAGES),
+				getLongParameter("prefetchIdleMillis", DEFAULT_PREFETCH_IDLE_MILLIS));
+		pageStates = getLongParameter("pageStates", DEFAULT_PAGE_STATES);
+		pageMillis = getLongParameter("pageMillis", DEFAULT_PAGE_MILLIS);
+		maxLog10Size = getDoubleParameter("maxLog10Size", DEFAULT_MAX_LOG10_SIZE);
+		heavyLog10Size = getDoubleParameter("heavyLog10Size", DEFAULT_HEAVY_LOG10_SIZE);
+		heavyRequests = new Semaphore(getIntParameter("heavyPermits", DEFAULT_HEAVY_PERMITS), true);
+		heavyWaitMillis = getLongParameter("heavyWaitMillis", DEFAULT_HEAVY_WAIT_MILLIS);
+		String storeDir = getInitParameter("storeDir");
+		String path = storeDir == null ? null : getServletContext().getRealPath(storeDir);
+		File[] files = path == null ? null : new File(path).listFiles((dir, name) -> name.endsWith(".store"));
+		if(files != null) {
+			for(File file: files) {
+				try {
+					DiagramStore store = new DiagramStore(file);
+					stores.put(store.getKey(), store);
+				} catch(IOException e) {
+					log("Ignoring diagram store " + file, e);
+				}
+			}
+		}
+	}
+	private int getIntParameter(String name, int defaultValue) {
+		String value = getInitParameter(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+	private long getLongParameter(String name, long defaultValue) {
+		String value = getInitParameter(name);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+	private double getDoubleParameter(String name, double defaultValue) {
+		String value = getInitParameter(name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+	/* @return True if a heavy permit was acquired within the wait. */
+	private boolean acquireHeavy() {
+		try {
+			return heavyRequests.tryAcquire(heavyWaitMillis, TimeUnit.MILLISECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
 		}
-		return list;
 	}
 	/**
-	 * @return
-	 * A Diagram from a JSON representation.
+	 * Stops prefetching.
 	 */
-	private Diagram parseJson(String json) {
-		Gson gson = new Gson();
-		DiagramRequest diagReq = gson.fromJson(json, DiagramRequest.class);
-		return new Diagram(diagReq.incomingElectrons, diagReq.incomingPositrons, 
-	  					   diagReq.incomingPhotons,   diagReq.outgoingElectrons, 
-		  				   diagReq.outgoingPositrons, diagReq.outgoingPhotons,
-						   diagReq.interactions);
+	@Override
+	public void destroy() {
+		prefetcher.shutdown();
 	}
 	/**
 	 * @return
-	 * A JSON ConnectionBean of the diagram.
+	 * The page of diagrams from the cursor, or from the index if there is
+	 * no cursor. If the search runs out of budget the page is partial, of
+	 * less than 9 diagrams, with more and the cursor to continue the search.
+	 * @throws IllegalArgumentException If the cursor is invalid.
 	 */
-	private ConnectionBean toConnections(Diagram diagram) {
-		Gson gson = new Gson();
-		ConnectionBean connections = new ConnectionBean();
-		String electronConnections = gson.toJson(map2list(diagram.getConnections(Particle.ELECTRON)));
-		String positronConnections = gson.toJson(Arrays.asList());
-		String photonConnections   = gson.toJson(map2list(diagram.getConnections(Particle.PHOTON)));
-		connections.setElectronConnections(electronConnections);
-		connections.setPositronConnections(positronConnections);
-		connections.setPhotonConnections(photonConnections);
-		return connections;
+	DiagramPage calculatePage(Diagram diagram, boolean topologies, DiagramFilter filter, 
+			String cursor, long from) {
+		DiagramIterator itr;
+		Long total = null;
+		boolean totalExact = false;
+		if(cursor != null) {
+			itr = topologies ? diagram.searchTopologies(filter, cursor) : diagram.searchSubDiagrams(filter, cursor);
+		} else {
+			itr = topologies ? diagram.searchTopologies(filter, from) : diagram.searchSubDiagrams(filter, from);
+			if(!topologies && from == 0) {
+				DiagramCount count = diagram.countSubDiagrams(filter);
+				total = count.getCount();
+				totalExact = count.isExact();
+			}
+		}
+		long index = itr.getIndex();
+		itr.setBudget(pageStates, pageMillis);
+		List<Diagram> diagrams = new ArrayList<Diagram>(9);
+		for(int i = 0; i < 9 && itr.hasNext(); i++) {
+			diagrams.add(itr.next().copy());
+		}
+		boolean more = itr.hasNext() || itr.isOverBudget();
+		return new DiagramPage(diagrams, index, more, itr.getCursor(), total, totalExact);
 	}
 	/**
 	 * @see HttpServlet#doGet(HttpServletRequest request, HttpServletResponse response)
 	 * @param request
 	 * required http request parameters:
-	 * request.uid - a unique identifier.
 	 * request.data - JSON incomplete diagram object, @see DiagramRequest
+	 * If request.data.maxLoops, noTadpoles, noSelfEnergies or onePI are set
+	 * only the diagrams of the DiagramFilter are returned.
+	 * If request.data.pinned or forbidden are set, lists of pairs of names,
+	 * only the diagrams connecting, or not connecting, each pair are
+	 * returned, @see Diagram#pin.
+	 * If request.data.topologies is true, only one diagram of each topology
+	 * is returned. Otherwise the first response includes the total number of
+	 * diagrams, or an upper bound if not exact.
+	 * optional http request parameters:
+	 * request.cursor - the cursor from the previous page, to continue from.
+	 * request.index - the page of diagrams, by 0, if there is no cursor.
+	 * No state is kept between requests, the response includes the cursor
+	 * of the next page. Pages are cached for all requests of the same
+	 * crossing family, @see Diagram#allIncoming, or read from a 
+	 * DiagramStore of the family if there is one. The next pages are calculated in the
+	 * background, @see PagePrefetcher. The search of a page is limited by a
+	 * budget, a partial page has more and a cursor to continue. Requests 
+	 * of very large processes are rejected, and of large processes wait 
+	 * for one of a few permits and are not prefetched, @see init. Diagrams are laid out for the
+	 * client to draw, @see DiagramLayout.
 	 */
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {		
-		// Create/Retrieve the iterator
-		String uid  = request.getParameter("uid");
-		HttpSession session = request.getSession();
-		@SuppressWarnings("unchecked")
-		Iterator<Diagram> itr = (Iterator<Diagram>) session.getAttribute(uid);
-		int index;
-		if(itr == null) {
-			String json = request.getParameter("data");
-			Diagram diagram = parseJson(json);
-			itr = diagram.getSubDiagrams(true);
-			session.setAttribute(uid, itr);
-			index = 0;
+		// Find the page of the process, whatever the names, in the cache
+		long start = System.nanoTime();
+		DiagramRequest diagReq = DiagramRequest.parseJson(request.getParameter("data"));
+		double log10Size = diagReq.estimateLog10Size();
+		if(log10Size > maxLog10Size) {
+			ServerMetrics.get().recordRejection();
+			response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Process too large");
+			return;
+		}
+		Diagram diagram;
+		try {
+			diagram = diagReq.toDiagram();
+		} catch(IllegalArgumentException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		if(diagReq.isTopologies() && diagram.isConstrained()) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Topologies cannot be constrained");
+			return;
+		}
+		// Every process of a crossing family is enumerated as one, then crossed
+		Diagram family = diagReq.hasInteractions() ? diagram.allIncoming() : diagram;
+		long parsed = System.nanoTime();
+		String cursor = request.getParameter("cursor");
+		String page = request.getParameter("index");
+		long from = page == null ? 0 : Long.parseLong(page) * 9;
+		String signature = family.getSignature();
+		DiagramFilter filter = diagReq.toFilter();
+		String processKey = DiagramStore.keyOf(family, diagReq.isTopologies(), filter);
+		String key = processKey + "|" + (cursor != null ? cursor : Long.toString(from));
+		// Pages of a store are not cached, reading them is as cheap
+		DiagramStore store = stores.get(processKey);
+		DiagramPage diagramPage = store == null ? null : store.getPage(family, cursor, from);
+		if(diagramPage != null) {
+			ServerMetrics.get().recordStoreHit();
 		} else {
-			index = Integer.parseInt(request.getParameter("index")) * 9;
+			// Heavy processes not cached share few permits, so cannot starve others
+			boolean large = log10Size > heavyLog10Size;
+			boolean heavy = large && cache.peek(key) == null;
+			if(heavy && !acquireHeavy()) {
+				ServerMetrics.get().recordRejection();
+				response.setHeader("Retry-After", "1");
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many large requests");
+				return;
+			}
+			try {
+				diagramPage = prefetcher.get(key, 
+						() -> calculatePage(family, diagReq.isTopologies(), filter, cursor, from));
+			} catch(IllegalArgumentException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+				return;
+			} finally {
+				if(heavy) {
+					heavyRequests.release();
+				}
+			}
+			// Calculate the next pages while the client draws this one, but
+			// not of large processes, which would be searched without a permit
+			if(!large) {
+				prefetcher.prefetch(processKey, diagramPage.isMore() ? diagramPage.getCursor() : null,
+						next -> calculatePage(family, diagReq.isTopologies(), filter, next, 0));
+			}
 		}
-		// Calculate more diagrams
+		long enumerated = System.nanoTime();
+		// Cross the diagrams to the process and names of the request
 		ArrayList<ConnectionBean> diagrams = new ArrayList<ConnectionBean>(9);
-		for(int i = 0; i < 9 && itr.hasNext(); i++) {
-			Diagram subDiagram = itr.next();
-			diagrams.add(toConnections(subDiagram));
+		for(Diagram subDiagram: diagramPage.getDiagrams()) {
+			diagrams.add(toConnections(subDiagram.cross(diagram)));
+		}
+		if(diagramPage.getTotal() != null) {
+			request.setAttribute("total", diagramPage.getTotal());
+			request.setAttribute("totalExact", diagramPage.isTotalExact());
 		}
-		request.setAttribute("index", index);
+		request.setAttribute("index", diagramPage.getIndex());
 		request.setAttribute("diagramList", diagrams);
-		request.setAttribute("more", itr.hasNext());
+		request.setAttribute("more", diagramPage.isMore());
+		request.setAttribute("cursor", diagramPage.getCursor());
+		long serialised = System.nanoTime();
 		// Forward to the JSP page
 		RequestDispatcher RequetsDispatcherObj = 
 				request.getRequestDispatcher("/WEB-INF/Diagrams.jsp");
 		RequetsDispatcherObj.forward(request, response);
+		ServerMetrics.get().record(signature, parsed - start, enumerated - parsed, 
+				serialised - enumerated, System.nanoTime() - serialised, diagramPage.getCursor());
 	}
 }
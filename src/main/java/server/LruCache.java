@@ -0,0 +1,90 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread safe cache bounded by the total weight of it's values, evicting
+ * the least recently used first.
+ * @author Alastair Crowe
+ * @param <K> Key type.
+ * @param <V> Value type.
+ */
+public class LruCache<K, V> {
+	/* In order of use, the least recently used first. */
+	private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>();
+	private final long maxWeight;
+	private final ToLongFunction<? super V> weigher;
+	private long weight = 0;
+	private long hits = 0;
+	private long misses = 0;
+	/**
+	 * @param maxWeight The most total weight of values.
+	 * @param weigher The weight of a value, e.g. an estimate of it's bytes.
+	 */
+	public LruCache(long maxWeight, ToLongFunction<? super V> weigher) {
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+	/**
+	 * @return The value of the key, or null if not cached.
+	 */
+	public synchronized V get(K key) {
+		V value = map.remove(key);
+		if(value == null) {
+			misses++;
+		} else {
+			hits++;
+			map.put(key, value);
+		}
+		return value;
+	}
+	/**
+	 * @return The value of the key, or null if not cached, without counting
+	 * a hit or miss or making it the most recently used.
+	 */
+	public synchronized V peek(K key) {
+		return map.get(key);
+	}
+	/**
+	 * Caches the value, evicting the least recently used values until the
+	 * total weight is within the maximum. Values heavier than the maximum
+	 * are not cached.
+	 */
+	public synchronized void put(K key, V value) {
+		long valueWeight = weigher.applyAsLong(value);
+		if(valueWeight > maxWeight) {
+			return;
+		}
+		V previous = map.remove(key);
+		map.put(key, value);
+		if(previous != null) {
+			weight -= weigher.applyAsLong(previous);
+		}
+		weight += valueWeight;
+		Iterator<Map.Entry<K, V>> itr = map.entrySet().iterator();
+		while(weight > maxWeight && itr.hasNext()) {
+			Map.Entry<K, V> eldest = itr.next();
+			weight -= weigher.applyAsLong(eldest.getValue());
+			itr.remove();
+		}
+	}
+	/** @return The number of cached values. */
+	public synchronized int size() {
+		return map.size();
+	}
+	/** @return The total weight of cached values. */
+	public synchronized long getWeight() {
+		return weight;
+	}
+	/** @return The number of gets that found a value. */
+	public synchronized long getHits() {
+		return hits;
+	}
+	/** @return The number of gets that found no value. */
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,152 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Calculates each page of diagrams once for all concurrent requests, and
+ * the next pages of a process on a bounded pool of threads while the
+ * client draws the last. Prefetching of a process stops once it has had
+ * no request for the idle time, or if the pool is busy. Pages are kept
+ * in the cache by the key of the process and the cursor of the page.
+ * @author Alastair Crowe
+ */
+class PagePrefetcher {
+	/* Prefetches waiting per thread, more are dropped. */
+	private static final int QUEUE_PER_THREAD = 4;
+	/* Processes of which the last request is kept before the idle are removed. */
+	private static final int MAX_PROCESSES = 1024;
+	private final LruCache<String, DiagramPage> cache;
+	private final int pages;
+	private final long idleNanos;
+	private final ThreadPoolExecutor executor;
+	/* Pages being calculated by key, so each is calculated once. */
+	private final ConcurrentHashMap<String, CompletableFuture<DiagramPage>> inFlight =
+			new ConcurrentHashMap<String, CompletableFuture<DiagramPage>>();
+	/* System.nanoTime of the last request of each process by key. */
+	private final ConcurrentHashMap<String, Long> lastRequests = new ConcurrentHashMap<String, Long>();
+	/**
+	 * @param cache Cache of pages.
+	 * @param threads Most threads calculating pages in the background.
+	 * @param pages Pages to calculate after each request.
+	 * @param idleMillis Time after the last request of a process that its
+	 * pages are no longer calculated.
+	 */
+	PagePrefetcher(LruCache<String, DiagramPage> cache, int threads, int pages, long idleMillis) {
+		this.cache = cache;
+		this.pages = pages;
+		this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+		AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD), runnable -> {
+					Thread thread = new Thread(runnable, "prefetch-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.DiscardPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+	/**
+	 * @param key Key of the page, the process key | cursor or index.
+	 * @param calculate Calculates the page if it is not cached.
+	 * @return The cached page, or the page calculated by this request or,
+	 * if it is already being calculated, by another.
+	 * @throws IllegalArgumentException If thrown by calculate.
+	 */
+	DiagramPage get(String key, Supplier<DiagramPage> calculate) {
+		DiagramPage page = cache.get(key);
+		if(page != null) {
+			return page;
+		}
+		CompletableFuture<DiagramPage> future = new CompletableFuture<DiagramPage>();
+		CompletableFuture<DiagramPage> existing = inFlight.putIfAbsent(key, future);
+		if(existing != null) {
+			try {
+				return existing.join();
+			} catch(CompletionException e) {
+				if(e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+		}
+		return calculate(key, future, calculate);
+	}
+	/**
+	 * Calculates the pages after the cursor in the background, those not
+	 * already cached or being calculated.
+	 * @param processKey Key of the process, of which pages are keyed by
+	 * processKey | cursor.
+	 * @param cursor Cursor of the next page, or null if there are no more.
+	 * @param calculate Calculates the page of a cursor.
+	 */
+	void prefetch(String processKey, String cursor, Function<String, DiagramPage> calculate) {
+		long now = System.nanoTime();
+		lastRequests.put(processKey, now);
+		if(lastRequests.size() > MAX_PROCESSES) {
+			lastRequests.values().removeIf(last -> now - last > idleNanos);
+		}
+		if(cursor == null || pages == 0) {
+			return;
+		}
+		executor.execute(() -> {
+			String next = cursor;
+			for(int i = 0; i < pages && next != null; i++) {
+				if(isIdle(processKey) || Thread.currentThread().isInterrupted()) {
+					return;
+				}
+				String key = processKey + "|" + next;
+				DiagramPage page = cache.peek(key);
+				if(page == null) {
+					CompletableFuture<DiagramPage> future = new CompletableFuture<DiagramPage>();
+					if(inFlight.putIfAbsent(key, future) != null) {
+						return; // Another thread calculates it, and prefetches after
+					}
+					String pageCursor = next;
+					try {
+						page = calculate(key, future, () -> calculate.apply(pageCursor));
+					} catch(RuntimeException e) {
+						return;
+					}
+					ServerMetrics.get().recordPrefetch();
+				}
+				next = page.isMore() ? page.getCursor() : null;
+			}
+		});
+	}
+	/**
+	 * Stops all prefetching, interrupting the threads.
+	 */
+	void shutdown() {
+		executor.shutdownNow();
+	}
+	private boolean isIdle(String processKey) {
+		Long last = lastRequests.get(processKey);
+		return last == null || System.nanoTime() - last > idleNanos;
+	}
+	/* Calculates and caches the page, completing the future in flight. */
+	private DiagramPage calculate(String key, CompletableFuture<DiagramPage> future,
+			Supplier<DiagramPage> calculate) {
+		try {
+			// Cached since the first look by a calculation just finished
+			DiagramPage page = cache.peek(key);
+			if(page == null) {
+				page = calculate.get();
+				cache.put(key, page);
+			}
+			future.complete(page);
+			return page;
+		} catch(RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(key, future);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import feynman.SearchMetrics;
+
+/**
+ * Timings of requests of the Diagrams and DiagramStream servlets, and the
+ * totals of SearchMetrics.
+ * Shown by JMX and the Metrics servlet.
+ * @author Alastair Crowe
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	private static final ServerMetrics INSTANCE = new ServerMetrics();
+	private final long started = System.nanoTime();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder parseNanos = new LongAdder();
+	private final LongAdder enumerateNanos = new LongAdder();
+	private final LongAdder serialiseNanos = new LongAdder();
+	private final LongAdder renderNanos = new LongAdder();
+	private final LongAdder cursorBytes = new LongAdder();
+	private final LongAdder storeHits = new LongAdder();
+	private final LongAdder prefetches = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+	private long maxLatencyNanos = 0;
+	private String slowestProcess = "";
+	private LruCache<?, ?> cache;
+	private ServerMetrics() {
+	}
+	/**
+	 * @return The metrics of the server, registered with the platform 
+	 * MBean server on first use if JMX is available.
+	 */
+	public static ServerMetrics get() {
+		return INSTANCE;
+	}
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, 
+					new ObjectName("server:type=ServerMetrics"));
+		} catch(JMException | SecurityException | LinkageError e) {
+			// JMX is unavailable or already registered, the servlet still works
+		}
+	}
+	/**
+	 * Records the timings of a request.
+	 * @param process Signature of the process requested.
+	 * @param cursor Cursor of the response, its length is recorded.
+	 */
+	public void record(String process, long parse, long enumerate, long serialise, long render, String cursor) {
+		requests.increment();
+		parseNanos.add(parse);
+		enumerateNanos.add(enumerate);
+		serialiseNanos.add(serialise);
+		renderNanos.add(render);
+		cursorBytes.add(cursor == null ? 0 : cursor.length());
+		long latency = parse + enumerate + serialise + render;
+		synchronized(this) {
+			if(latency > maxLatencyNanos) {
+				maxLatencyNanos = latency;
+				slowestProcess = process;
+			}
+		}
+	}
+	/** Records a page answered from a DiagramStore. */
+	public void recordStoreHit() {
+		storeHits.increment();
+	}
+	/** Records a page calculated in the background by PagePrefetcher. */
+	public void recordPrefetch() {
+		prefetches.increment();
+	}
+	/** Records a request rejected by admission control. */
+	public void recordRejection() {
+		rejections.increment();
+	}
+	/** Sets the cache of which to show hits and misses. */
+	public void setCache(LruCache<?, ?> cache) {
+		this.cache = cache;
+	}
+	private double meanMillis(LongAdder nanos) {
+		long count = requests.sum();
+		return count == 0 ? 0 : nanos.sum() / 1e6 / count;
+	}
+	@Override
+	public long getRequests() {
+		return requests.sum();
+	}
+	@Override
+	public double getMeanParseMillis() {
+		return meanMillis(parseNanos);
+	}
+	@Override
+	public double getMeanEnumerateMillis() {
+		return meanMillis(enumerateNanos);
+	}
+	@Override
+	public double getMeanSerialiseMillis() {
+		return meanMillis(serialiseNanos);
+	}
+	@Override
+	public double getMeanRenderMillis() {
+		return meanMillis(renderNanos);
+	}
+	@Override
+	public synchronized double getMaxLatencyMillis() {
+		return maxLatencyNanos / 1e6;
+	}
+	@Override
+	public synchronized String getSlowestProcess() {
+		return slowestProcess;
+	}
+	@Override
+	public double getMeanCursorBytes() {
+		long count = requests.sum();
+		return count == 0 ? 0 : (double) cursorBytes.sum() / count;
+	}
+	@Override
+	public long getCacheHits() {
+		return cache == null ? 0 : cache.getHits();
+	}
+	@Override
+	public long getCacheMisses() {
+		return cache == null ? 0 : cache.getMisses();
+	}
+	@Override
+	public long getStoreHits() {
+		return storeHits.sum();
+	}
+	@Override
+	public long getPrefetches() {
+		return prefetches.sum();
+	}
+	@Override
+	public long getRejections() {
+		return rejections.sum();
+	}
+	@Override
+	public long getStatesVisited() {
+		return SearchMetrics.getStatesVisited();
+	}
+	@Override
+	public long getBranchesRejected() {
+		return SearchMetrics.getBranchesRejected();
+	}
+	@Override
+	public long getLeavesDisconnected() {
+		return SearchMetrics.getLeavesDisconnected();
+	}
+	@Override
+	public long getDiagramsEmitted() {
+		return SearchMetrics.getDiagramsEmitted();
+	}
+	/** @return The mean rate of diagrams returned since the server started. */
+	@Override
+	public double getDiagramsPerSecond() {
+		long seconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started);
+		return seconds == 0 ? 0 : (double) getDiagramsEmitted() / seconds;
+	}
+	/** @return Each metric by name, in the order of ServerMetricsMBean. */
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("requests", getRequests());
+		map.put("meanParseMillis", getMeanParseMillis());
+		map.put("meanEnumerateMillis", getMeanEnumerateMillis());
+		map.put("meanSerialiseMillis", getMeanSerialiseMillis());
+		map.put("meanRenderMillis", getMeanRenderMillis());
+		map.put("maxLatencyMillis", getMaxLatencyMillis());
+		map.put("slowestProcess", getSlowestProcess());
+		map.put("meanCursorBytes", getMeanCursorBytes());
+		map.put("cacheHits", getCacheHits());
+		map.put("cacheMisses", getCacheMisses());
+		map.put("storeHits", getStoreHits());
+		map.put("prefetches", getPrefetches());
+		map.put("rejections", getRejections());
+		map.put("statesVisited", getStatesVisited());
+		map.put("branchesRejected", getBranchesRejected());
+		map.put("leavesDisconnected", getLeavesDisconnected());
+		map.put("diagramsEmitted", getDiagramsEmitted());
+		map.put("diagramsPerSecond", getDiagramsPerSecond());
+		return map;
+	}
+}
@@ -0,0 +1,27 @@
+package server;
+
+/**
+ * The JMX view of ServerMetrics, registered as server:type=ServerMetrics.
+ * @author Alastair Crowe
+ */
+@SuppressWarnings("javadoc")
+public interface ServerMetricsMBean {
+	long getRequests();
+	double getMeanParseMillis();
+	double getMeanEnumerateMillis();
+	double getMeanSerialiseMillis();
+	double getMeanRenderMillis();
+	double getMaxLatencyMillis();
+	String getSlowestProcess();
+	double getMeanCursorBytes();
+	long getCacheHits();
+	long getCacheMisses();
+	long getStoreHits();
+	long getPrefetches();
+	long getRejections();
+	long getStatesVisited();
+	long getBranchesRejected();
+	long getLeavesDisconnected();
+	long getDiagramsEmitted();
+	double getDiagramsPerSecond();
+}
@@ -0,0 +1,54 @@
+package shard;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import feynman.Diagram;
+
+/**
+ * Diagrams of a process as fixed width records, as DiagramStore: the
+ * symmetry factor, multiplicity and the connection of each node.
+ * @author Alastair Crowe
+ */
+public final class DiagramRecords {
+	private DiagramRecords() {
+	}
+	/**
+	 * @return Bytes of the record of each diagram of the process.
+	 */
+	public static int recordBytes(Diagram process) {
+		return 12 + 2 * process.size();
+	}
+	/**
+	 * Writes the record of a connected diagram.
+	 */
+	public static void write(DataOutputStream out, Diagram diagram) throws IOException {
+		out.writeInt(diagram.getSymmetryFactor());
+		out.writeLong(diagram.getMultiplicity());
+		for(int i = 0; i < diagram.size(); i++) {
+			out.writeShort(diagram.connectionOf(i));
+		}
+	}
+	/**
+	 * @param process The unconnected process of the records.
+	 * @return The diagram of the next record, or null at the end.
+	 * @throws IOException If the record is truncated.
+	 * @throws IllegalArgumentException If the record is not of the process.
+	 */
+	public static Diagram read(DataInputStream in, Diagram process) throws IOException {
+		int symmetryFactor;
+		try {
+			symmetryFactor = in.readInt();
+		} catch(EOFException e) {
+			return null;
+		}
+		long multiplicity = in.readLong();
+		int[] connections = new int[process.size()];
+		for(int i = 0; i < connections.length; i++) {
+			connections[i] = in.readShort();
+		}
+		return process.connect(connections, symmetryFactor, multiplicity);
+	}
+}
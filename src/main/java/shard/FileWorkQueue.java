@@ -0,0 +1,205 @@
+package shard;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A WorkQueue in a directory, shared by workers on the same file system.
+ * Units are files moved between the directories pending and claimed, so
+ * each is claimed by one worker, and the records of a completed unit are
+ * a file of the directory results. Each move is atomic, a failed worker
+ * leaves only it's claim, and a temporary file of results which is not
+ * seen. The time of a claim, and of it's results, is the modified time of
+ * it's files, which renew sets to now. Thread safe, and safe between 
+ * processes.
+ * @author Alastair Crowe
+ */
+public class FileWorkQueue implements WorkQueue {
+	private static final String UNIT = ".unit";
+	private static final String PART = ".part";
+	private static final String TEMP = ".tmp";
+	private final Path pending;
+	private final Path claimed;
+	private final Path results;
+	/* Temporary file of the results of each unit claimed by this queue. */
+	private final ConcurrentHashMap<Integer, Path> writing = new ConcurrentHashMap<Integer, Path>();
+	/**
+	 * @param dir Directory of the queue, created if it does not exist.
+	 */
+	public FileWorkQueue(File dir) throws IOException {
+		pending = Files.createDirectories(dir.toPath().resolve("pending"));
+		claimed = Files.createDirectories(dir.toPath().resolve("claimed"));
+		results = Files.createDirectories(dir.toPath().resolve("results"));
+	}
+	/* Units are named by ordinal, so sort in order. */
+	private static String nameOf(int ordinal) {
+		return String.format("%08d", ordinal);
+	}
+	private static int ordinalOf(Path file) {
+		String name = file.getFileName().toString();
+		return Integer.parseInt(name.substring(0, name.indexOf('.')));
+	}
+	@Override
+	public void submit(WorkUnit unit) throws IOException {
+		Path temp = pending.resolve(nameOf(unit.getOrdinal()) + "." + UUID.randomUUID() + TEMP);
+		try(ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			out.writeObject(unit);
+		}
+		move(temp, pending.resolve(nameOf(unit.getOrdinal()) + UNIT));
+	}
+	@Override
+	public WorkUnit claim() throws IOException {
+		for(Path unit: list(pending, UNIT)) {
+			Path claim = claimed.resolve(unit.getFileName());
+			try {
+				Files.move(unit, claim, StandardCopyOption.ATOMIC_MOVE);
+			} catch(NoSuchFileException | FileAlreadyExistsException e) {
+				continue; // Claimed by another worker
+			}
+			// The time of the claim, as a move keeps the time of the file
+			Files.setLastModifiedTime(claim, FileTime.fromMillis(System.currentTimeMillis()));
+			try(ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(claim)))) {
+				return (WorkUnit) in.readObject();
+			} catch(ClassNotFoundException | ClassCastException e) {
+				throw new IOException("Not a work unit: " + claim, e);
+			}
+		}
+		return null;
+	}
+	@Override
+	public OutputStream results(WorkUnit unit) throws IOException {
+		Path temp = results.resolve(nameOf(unit.getOrdinal()) + "." + UUID.randomUUID() + TEMP);
+		writing.put(unit.getOrdinal(), temp);
+		return Files.newOutputStream(temp);
+	}
+	@Override
+	public boolean renew(WorkUnit unit) throws IOException {
+		Path temp = writing.get(unit.getOrdinal());
+		FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+		try {
+			// The results first, so they are not removed once the claim is renewed
+			if(temp != null) {
+				Files.setLastModifiedTime(temp, now);
+			}
+			Files.setLastModifiedTime(claimed.resolve(nameOf(unit.getOrdinal()) + UNIT), now);
+			return true;
+		} catch(NoSuchFileException e) {
+			return false; // Requeued
+		}
+	}
+	@Override
+	public boolean complete(WorkUnit unit) throws IOException {
+		Path temp = writing.remove(unit.getOrdinal());
+		if(temp == null) {
+			throw new IllegalStateException("No results of " + unit);
+		}
+		// The same unit searched again, after it's claim expired, has the same results
+		try {
+			move(temp, results.resolve(nameOf(unit.getOrdinal()) + PART));
+		} catch(NoSuchFileException e) {
+			return false;
+		}
+		Files.deleteIfExists(claimed.resolve(nameOf(unit.getOrdinal()) + UNIT));
+		// Requeued but not yet claimed again
+		Files.deleteIfExists(pending.resolve(nameOf(unit.getOrdinal()) + UNIT));
+		return true;
+	}
+	@Override
+	public void abandon(WorkUnit unit) throws IOException {
+		Path temp = writing.remove(unit.getOrdinal());
+		if(temp != null) {
+			Files.deleteIfExists(temp);
+		}
+	}
+	/* The number of units of which results are being written. */
+	int writing() {
+		return writing.size();
+	}
+	@Override
+	public InputStream completed(int ordinal) throws IOException {
+		try {
+			return Files.newInputStream(results.resolve(nameOf(ordinal) + PART));
+		} catch(NoSuchFileException e) {
+			return null;
+		}
+	}
+	@Override
+	public int size() throws IOException {
+		Set<Integer> ordinals = new HashSet<Integer>();
+		for(Path dir: new Path[] {pending, claimed}) {
+			for(Path unit: list(dir, UNIT)) {
+				ordinals.add(ordinalOf(unit));
+			}
+		}
+		for(Path part: list(results, PART)) {
+			ordinals.add(ordinalOf(part));
+		}
+		return ordinals.size();
+	}
+	@Override
+	public int requeue(long claimMillis) throws IOException {
+		long expired = System.currentTimeMillis() - claimMillis;
+		int requeued = 0;
+		for(Path claim: list(claimed, UNIT)) {
+			try {
+				if(Files.getLastModifiedTime(claim).toMillis() < expired) {
+					Files.move(claim, pending.resolve(claim.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+					requeued++;
+				}
+			} catch(NoSuchFileException e) {
+				// Completed or requeued meanwhile
+			}
+		}
+		// Results of failed workers
+		for(Path temp: list(results, TEMP)) {
+			try {
+				if(Files.getLastModifiedTime(temp).toMillis() < expired) {
+					Files.deleteIfExists(temp);
+				}
+			} catch(NoSuchFileException e) {
+				// Completed meanwhile
+			}
+		}
+		return requeued;
+	}
+	/* The files of the directory with the suffix, in order. */
+	private static List<Path> list(Path dir, String suffix) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + suffix)) {
+			for(Path file: stream) {
+				files.add(file);
+			}
+		}
+		Collections.sort(files);
+		return files;
+	}
+	/* Moves atomically, replacing the target, where the file system can. */
+	private static void move(Path from, Path to) throws IOException {
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch(AtomicMoveNotSupportedException e) {
+			Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
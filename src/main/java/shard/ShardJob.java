@@ -0,0 +1,45 @@
+package shard;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import feynman.Diagram;
+import request.DiagramRequest;
+
+/**
+ * Submits the work units of a process to a FileWorkQueue. A bulk job is:
+ * ShardJob request.json queue-dir units, then ShardWorker queue-dir in
+ * each worker process, then ShardMerger queue-dir output.records until
+ * every unit is merged.
+ * @author Alastair Crowe
+ */
+public class ShardJob {
+	/**
+	 * @param args The file of a JSON request, @see DiagramRequest, the
+	 * directory of the queue and the most units.
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length != 3) {
+			System.err.println("Usage: ShardJob request.json queue-dir units");
+			System.exit(1);
+		}
+		String json = new String(Files.readAllBytes(new File(args[0]).toPath()), StandardCharsets.UTF_8);
+		DiagramRequest diagReq = DiagramRequest.parseJson(json);
+		Diagram process = diagReq.toDiagram();
+		WorkQueue queue = new FileWorkQueue(new File(args[1]));
+		if(queue.size() != 0) {
+			System.err.println("Queue already has units: " + args[1]);
+			System.exit(1);
+		}
+		long start = System.nanoTime();
+		WorkUnit[] units = WorkUnit.partition(process, diagReq.isTopologies(), diagReq.toFilter(),
+				Integer.parseInt(args[2]));
+		for(WorkUnit unit: units) {
+			queue.submit(unit);
+		}
+		System.out.println("Submitted " + units.length + " units in "
+				+ (System.nanoTime() - start) / 1000000 + "ms to " + args[1]);
+	}
+}
@@ -0,0 +1,114 @@
+package shard;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Merges the records of completed work units, in the order of the units,
+ * so the output has the diagrams in the order of the search of the whole
+ * process, @see DiagramRecords. Units may complete in any order, a merge
+ * appends those completed after the last merged and stops at the first
+ * not yet completed. The next unit and the length of the output are kept
+ * in a checkpoint file after each unit, so a merge that stops or fails is
+ * continued by the next merge.
+ * @author Alastair Crowe
+ */
+public class ShardMerger {
+	private static final long DEFAULT_CLAIM_MILLIS = 10 * 60 * 1000;
+	private final WorkQueue queue;
+	private final File output;
+	private final Path checkpoint;
+	/* Next unit to merge, and bytes of the output of the units merged. */
+	private int next;
+	private long bytes;
+	/**
+	 * @param queue Queue of the completed units.
+	 * @param output File of the records, with a checkpoint file output.checkpoint.
+	 */
+	public ShardMerger(WorkQueue queue, File output) throws IOException {
+		this.queue = queue;
+		this.output = output;
+		this.checkpoint = new File(output.getPath() + ".checkpoint").toPath();
+		if(Files.exists(checkpoint)) {
+			String[] fields = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim().split(" ");
+			try {
+				next = Integer.parseInt(fields[0]);
+				bytes = Long.parseLong(fields[1]);
+			} catch(RuntimeException e) {
+				throw new IOException("Corrupt checkpoint: " + checkpoint, e);
+			}
+		}
+	}
+	/**
+	 * Appends the records of the units completed after the last merged.
+	 * @return True if every unit of the queue is merged.
+	 */
+	public boolean merge() throws IOException {
+		int units = queue.size();
+		try(RandomAccessFile out = new RandomAccessFile(output, "rw")) {
+			// Anything after the checkpoint is of a merge that did not finish
+			out.setLength(bytes);
+			out.seek(bytes);
+			byte[] buffer = new byte[1 << 16];
+			for(; next < units; next++) {
+				InputStream completed = queue.completed(next);
+				if(completed == null) {
+					break;
+				}
+				try(InputStream in = completed) {
+					for(int read; (read = in.read(buffer)) != -1;) {
+						out.write(buffer, 0, read);
+						bytes += read;
+					}
+				}
+				out.getFD().sync();
+				writeCheckpoint(next + 1, bytes);
+			}
+		}
+		return next == units;
+	}
+	/** @return The number of units merged. */
+	public int getMerged() {
+		return next;
+	}
+	/** @return The bytes of the records of the units merged. */
+	public long getBytes() {
+		return bytes;
+	}
+	/* Replaces the checkpoint, so it is never partly written. */
+	private void writeCheckpoint(int next, long bytes) throws IOException {
+		Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+		Files.write(temp, (next + " " + bytes + "\n").getBytes(StandardCharsets.UTF_8));
+		try {
+			Files.move(temp, checkpoint, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch(AtomicMoveNotSupportedException e) {
+			Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	/**
+	 * Returns the expired claims of a FileWorkQueue to the queue, and merges
+	 * the completed units. Run again until every unit is merged.
+	 * @param args The directory of the queue, the output file and optionally
+	 * the time in milliseconds a unit may be claimed for.
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length != 2 && args.length != 3) {
+			System.err.println("Usage: ShardMerger queue-dir output.records [claim-millis]");
+			System.exit(1);
+		}
+		FileWorkQueue queue = new FileWorkQueue(new File(args[0]));
+		int requeued = queue.requeue(args.length == 3 ? Long.parseLong(args[2]) : DEFAULT_CLAIM_MILLIS);
+		ShardMerger merger = new ShardMerger(queue, new File(args[1]));
+		boolean done = merger.merge();
+		System.out.println("Merged " + merger.getMerged() + " of " + queue.size() + " units, "
+				+ merger.getBytes() + " bytes, requeued " + requeued + " expired claims");
+		System.exit(done ? 0 : 2);
+	}
+}
@@ -0,0 +1,110 @@
+package shard;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import feynman.DiagramIterator;
+
+/**
+ * Searches work units of a queue until none are waiting, writing the
+ * records of each diagram of a unit as it's results. Run as many workers,
+ * in processes or on machines sharing the queue, as there are cores.
+ * The claim of the unit being searched is renewed in the background, so
+ * a unit may take longer than the time of a claim.
+ * @author Alastair Crowe
+ */
+public class ShardWorker {
+	private static final long DEFAULT_RENEW_MILLIS = 60 * 1000;
+	private final WorkQueue queue;
+	private final long renewMillis;
+	/**
+	 * @param queue Queue of the units to search.
+	 * @param renewMillis Time between renewals of a claim, less than the
+	 * time a unit may be claimed for, @see ShardMerger#main.
+	 */
+	public ShardWorker(WorkQueue queue, long renewMillis) {
+		this.queue = queue;
+		this.renewMillis = renewMillis;
+	}
+	/**
+	 * Claims, searches and completes units until none are waiting. A unit
+	 * of which the claim expired is left to the worker that claims it next,
+	 * and the results of it are removed.
+	 * @return The number of units completed.
+	 */
+	public int work() throws IOException {
+		ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "renew-claims");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			int completed = 0;
+			for(WorkUnit unit = queue.claim(); unit != null; unit = queue.claim()) {
+				if(search(unit, renewer)) {
+					completed++;
+				}
+			}
+			return completed;
+		} finally {
+			renewer.shutdownNow();
+		}
+	}
+	/* @return True if the unit was searched and completed. */
+	private boolean search(WorkUnit unit, ScheduledExecutorService renewer) throws IOException {
+		AtomicBoolean expired = new AtomicBoolean();
+		ScheduledFuture<?> renewal = renewer.scheduleWithFixedDelay(() -> {
+			try {
+				if(!queue.renew(unit)) {
+					expired.set(true);
+				}
+			} catch(IOException e) {
+				// Tried again at the next renewal
+			}
+		}, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+		boolean completed = false;
+		try {
+			// Renewed until the results are written
+			try {
+				DiagramIterator itr = unit.search();
+				try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(queue.results(unit)))) {
+					while(itr.hasNext() && !expired.get()) {
+						DiagramRecords.write(out, itr.next());
+					}
+				}
+			} finally {
+				renewal.cancel(false);
+			}
+			completed = !expired.get() && queue.complete(unit);
+			return completed;
+		} finally {
+			// The results of an expired claim, or a failed search
+			if(!completed) {
+				queue.abandon(unit);
+			}
+		}
+	}
+	/**
+	 * Works the units of a FileWorkQueue, @see ShardJob#main.
+	 * @param args The directory of the queue, and optionally the time in
+	 * milliseconds between renewals of a claim.
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1 && args.length != 2) {
+			System.err.println("Usage: ShardWorker queue-dir [renew-millis]");
+			System.exit(1);
+		}
+		long start = System.nanoTime();
+		long renewMillis = args.length == 2 ? Long.parseLong(args[1]) : DEFAULT_RENEW_MILLIS;
+		int completed = new ShardWorker(new FileWorkQueue(new File(args[0])), renewMillis).work();
+		System.out.println("Completed " + completed + " units in "
+				+ (System.nanoTime() - start) / 1000000 + "ms");
+	}
+}
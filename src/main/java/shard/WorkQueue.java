@@ -0,0 +1,65 @@
+package shard;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Hands work units to workers, which may be other processes or machines,
+ * and keeps the diagrams of each completed unit for ShardMerger. A unit
+ * is claimed by one worker at a time, which renews the claim while it 
+ * searches. If the worker fails the claim expires and only that unit is
+ * searched again, @see requeue.
+ * @author Alastair Crowe
+ */
+public interface WorkQueue {
+	/**
+	 * Adds a unit to be claimed.
+	 */
+	void submit(WorkUnit unit) throws IOException;
+	/**
+	 * @return The next unit, claimed by this worker, or null if no units
+	 * are waiting.
+	 */
+	WorkUnit claim() throws IOException;
+	/**
+	 * @return A stream for the records of a claimed unit, @see DiagramRecords.
+	 * The records are not seen until the unit is completed.
+	 */
+	OutputStream results(WorkUnit unit) throws IOException;
+	/**
+	 * Extends the claim of a unit, and of it's results, to the time a unit
+	 * may be claimed for from now. Renew more often than that time.
+	 * @return False if the claim has expired, so the unit may be searched
+	 * by another worker and this worker need not finish it.
+	 */
+	boolean renew(WorkUnit unit) throws IOException;
+	/**
+	 * Publishes the records of a claimed unit, once the stream of results
+	 * is closed, and ends the claim.
+	 * @return False if the claim had expired and the results were removed,
+	 * so the unit is left to another worker.
+	 */
+	boolean complete(WorkUnit unit) throws IOException;
+	/**
+	 * Removes the results of a claimed unit that was not completed, as
+	 * it's claim expired or it's search failed. The claim is left to expire.
+	 */
+	void abandon(WorkUnit unit) throws IOException;
+	/**
+	 * @param ordinal Number of the unit.
+	 * @return The records of the unit, or null if it is not completed.
+	 */
+	InputStream completed(int ordinal) throws IOException;
+	/**
+	 * @return The number of units submitted.
+	 */
+	int size() throws IOException;
+	/**
+	 * Returns units not completed within the time of their claim, e.g. of
+	 * a failed worker, to be claimed again.
+	 * @param claimMillis Time a unit may be claimed for.
+	 * @return The number of units returned.
+	 */
+	int requeue(long claimMillis) throws IOException;
+}
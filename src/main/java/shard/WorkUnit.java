@@ -0,0 +1,67 @@
+package shard;
+
+import java.io.Serializable;
+
+import feynman.Diagram;
+import feynman.DiagramFilter;
+import feynman.DiagramIterator;
+
+/**
+ * A part of the search of a process, the diagrams from a cursor of
+ * Diagram.partitionSubDiagrams or partitionTopologies, to be searched by
+ * any worker. Units are numbered in the order of the search.
+ * @author Alastair Crowe
+ */
+public class WorkUnit implements Serializable {
+	private static final long serialVersionUID = 1L;
+	private final Diagram process;
+	private final boolean topologies;
+	private final DiagramFilter filter;
+	private final int ordinal;
+	private final String cursor;
+	/**
+	 * @param process The unconnected process.
+	 * @param topologies Whether the cursor is of a search of topologies.
+	 * @param filter The filter of the search.
+	 * @param ordinal The number of the unit, by 0, in the order of the search.
+	 * @param cursor The cursor of the part.
+	 */
+	public WorkUnit(Diagram process, boolean topologies, DiagramFilter filter, int ordinal, String cursor) {
+		this.process = process;
+		this.topologies = topologies;
+		this.filter = filter;
+		this.ordinal = ordinal;
+		this.cursor = cursor;
+	}
+	/**
+	 * @return The units of every part of the search of the process, in order.
+	 * @param parts Most units, fewer if the search cannot be split as much.
+	 */
+	public static WorkUnit[] partition(Diagram process, boolean topologies, DiagramFilter filter, int parts) {
+		String[] cursors = (topologies ? process.partitionTopologies(filter, parts)
+				: process.partitionSubDiagrams(filter, parts)).toArray(new String[0]);
+		WorkUnit[] units = new WorkUnit[cursors.length];
+		for(int i = 0; i < units.length; i++) {
+			units[i] = new WorkUnit(process, topologies, filter, i, cursors[i]);
+		}
+		return units;
+	}
+	/**
+	 * @return An iterator of the diagrams of the unit only.
+	 */
+	public DiagramIterator search() {
+		return topologies ? process.searchTopologies(filter, cursor) : process.searchSubDiagrams(filter, cursor);
+	}
+	/** @return The unconnected process. */
+	public Diagram getProcess() {
+		return process;
+	}
+	/** @return The number of the unit, by 0, in the order of the search. */
+	public int getOrdinal() {
+		return ordinal;
+	}
+	@Override
+	public String toString() {
+		return "WorkUnit " + ordinal + " of " + process.getSignature() + (topologies ? "|t|" : "|d|") + filter;
+	}
+}
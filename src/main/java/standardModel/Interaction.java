@@ -8,7 +8,11 @@ package standardModel;
 @SuppressWarnings("javadoc")
 public enum Interaction {
 	// TODO Other interactions
-	ELECTROMAGNETIC(Particle.PHOTON, Particle.ELECTRON, Particle.ANTI_ELECTRON);
+	ELECTROMAGNETIC(Particle.ELECTRON, Particle.ANTI_ELECTRON, Particle.PHOTON);
+	/**
+	 * Particles of the nodes of a vertex of the interaction, in the order
+	 * of the nodes, so of the node indices of a Diagram.
+	 */
 	public final Particle[] particles;
 	private Interaction(Particle... particles) {
 		this.particles = particles;
@@ -53,11 +53,38 @@ public enum Particle {
 		this.anti = anti;
 		this.group = group;
 	}
+	/* Anti-particle of each particle, by ordinal. */
+	private static final Particle[] ANTI_PARTICLES = new Particle[values().length];
+	/* Ordinal of the anti-particle of each particle, by ordinal. */
+	private static final int[] ANTI_ORDINALS = new int[values().length];
+	static {
+		for(Particle particle: values()) {
+			ANTI_PARTICLES[particle.ordinal()] = antiParticleOf(particle);
+			ANTI_ORDINALS[particle.ordinal()] = antiParticleOf(particle).ordinal();
+		}
+	}
 	/**
 	 * @param particle Particle of which to find the anti-particle.
 	 * @return The anti-particle of the specified particle.
 	 */
 	public static Particle getAntiParticle(Particle particle) {
+		return ANTI_PARTICLES[particle.ordinal()];
+	}
+	/**
+	 * @param ordinal Ordinal of a particle.
+	 * @return The ordinal of the anti-particle.
+	 */
+	public static int getAntiOrdinal(int ordinal) {
+		return ANTI_ORDINALS[ordinal];
+	}
+	/**
+	 * @return true if the particles can be connected, so one is the
+	 * anti-particle of the other.
+	 */
+	public static boolean canConnect(Particle particle1, Particle particle2) {
+		return ANTI_ORDINALS[particle1.ordinal()] == particle2.ordinal();
+	}
+	private static Particle antiParticleOf(Particle particle) {
 		switch (particle) {
 			case UP: return ANTI_UP;
 			case CHARM: return ANTI_CHARM;
@@ -5,21 +5,21 @@
     <div class="outputDiagramContainer">
       <div id="diagram${diagramLoop.index + index}" class="outputDiagram">
       </div>
+      <c:if test="${diagram.multiplicity > 1}">
+        <span class="multiplicity">&times;${diagram.multiplicity}</span>
+      </c:if>
     </div>
   </c:forEach>
 </div>
 <script>
+  reqCursor = "${cursor}";
   <c:forEach items="${diagramList}" var="diagram" varStatus="diagramLoop">
-  $("#diagram${diagramLoop.index + index}").autofeyn({
-    incoming: loaded.incoming,
-    outgoing: loaded.outgoing,
-    vertex:   loaded.vertex,
-    electron: ${diagram.electronConnections},
-    positron: ${diagram.positronConnections},
-    photon:   ${diagram.photonConnections},
-  });
+  $("#diagram${diagramLoop.index + index}").drawfeyn(${diagram.layout});
   </c:forEach>
-  <c:if test="${index == 0 && empty diagramList}">
+  <c:if test="${not empty total}">
+    $("#total").text("${totalExact ? '' : 'At most '}${total} diagrams").show();
+  </c:if>
+  <c:if test="${index == 0 && empty diagramList && !more}">
     $("#message").show();
   </c:if>
   <c:if test="${more}">
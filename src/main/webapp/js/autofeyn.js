@@ -392,4 +392,57 @@ $.fn.discfeyn = function(opts) {
     inner.autofeyn(iopts);
   });
   return $(this);
-};
\ No newline at end of file
+};
+/**
+ * Decodes diagrams sent by the compact encoding of the DiagramStream
+ * servlet, each the changes of connections from the previous diagram.
+ * @param process
+ * the first object sent, e.g.:
+ * {names: ["i1", "i2", "o1", "v1", ...],
+ *  particles: ["ELECTRON", "ANTI_ELECTRON", "PHOTON", "ELECTRON", ...]}
+ * @return
+ * a function of each diagram's delta string, returning it's connections
+ * for autofeyn, e.g.: {electron: ["i1-v1", ...], positron: [], photon: [...]}
+ */
+function decodeCompact(process) {
+  var digits = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+  var connection = process.names.map(function() {
+    return -1;
+  });
+  return function(delta) {
+    var pos = 0;
+    function readVarint() {
+      var value = 0;
+      var shift = 0;
+      var digit;
+      do {
+        digit = digits.indexOf(delta.charAt(pos++));
+        value += (digit & 31) * Math.pow(2, shift);
+        shift += 5;
+      } while (digit >= 32);
+      return value;
+    }
+    var node = 0;
+    while (pos < delta.length) {
+      node += readVarint();
+      var other = readVarint();
+      connection[node] = other;
+      connection[other] = node;
+    }
+    var res = {
+      electron: [],
+      positron: [],
+      photon: []
+    };
+    for (var i = 0; i < connection.length; i++) {
+      var particle = process.particles[i];
+      var to = connection[i];
+      if (particle == "ELECTRON" && to != -1) {
+        res.electron.push(process.names[i] + "-" + process.names[to]);
+      } else if (particle == "PHOTON" && i < to) {
+        res.photon.push(process.names[i] + "-" + process.names[to]);
+      }
+    }
+    return res;
+  };
+}
@@ -0,0 +1,96 @@
+package benchmark;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Compares JMH JSON results to a baseline, failing if any benchmark is
+ * slower, or allocates more, by more than a tolerance and more than the
+ * error of the scores. Run by the benchmark profile.
+ * Arguments: baseline file, result file, tolerance (e.g. 0.2 for 20%).
+ * @author Alastair Crowe
+ */
+public class BaselineComparator {
+	/* Score of each benchmark and it's parameters. */
+	private static Map<String, JsonObject> read(String file) throws IOException {
+		Map<String, JsonObject> results = new LinkedHashMap<String, JsonObject>();
+		try(Reader reader = new FileReader(file)) {
+			JsonArray array = new JsonParser().parse(reader).getAsJsonArray();
+			for(JsonElement element: array) {
+				JsonObject result = element.getAsJsonObject();
+				String key = result.get("benchmark").getAsString() + " " + result.get("mode").getAsString();
+				if(result.has("params")) {
+					Map<String, String> params = new TreeMap<String, String>();
+					for(Map.Entry<String, JsonElement> param: result.getAsJsonObject("params").entrySet()) {
+						params.put(param.getKey(), param.getValue().getAsString());
+					}
+					key += " " + params;
+				}
+				results.put(key, result);
+			}
+		}
+		return results;
+	}
+	/* 
+	 * @return The relative change of the score from the baseline, positive
+	 * if worse, or 0 if the change is within the error of the scores.
+	 */
+	private static double regression(JsonObject baseline, JsonObject result, boolean higherIsBetter) {
+		double base = baseline.get("score").getAsDouble();
+		double score = result.get("score").getAsDouble();
+		if(base == 0 || Math.abs(score - base) <= error(baseline) + error(result)) {
+			return 0;
+		}
+		return higherIsBetter ? (base - score) / base : (score - base) / base;
+	}
+	/* The 99.9% confidence interval, 0 if there were too few iterations. */
+	private static double error(JsonObject metric) {
+		JsonElement error = metric.get("scoreError");
+		return error == null || !error.isJsonPrimitive() || !error.getAsJsonPrimitive().isNumber() 
+				? 0 : error.getAsDouble();
+	}
+	@SuppressWarnings("javadoc")
+	public static void main(String[] args) throws IOException {
+		Map<String, JsonObject> baseline = read(args[0]);
+		Map<String, JsonObject> results = read(args[1]);
+		double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.2;
+		int regressions = 0;
+		for(Map.Entry<String, JsonObject> entry: results.entrySet()) {
+			JsonObject base = baseline.get(entry.getKey());
+			if(base == null) {
+				System.out.println("NEW  " + entry.getKey());
+				continue;
+			}
+			JsonObject result = entry.getValue();
+			boolean throughput = "thrpt".equals(result.get("mode").getAsString());
+			double time = regression(base.getAsJsonObject("primaryMetric"), 
+			                         result.getAsJsonObject("primaryMetric"), throughput);
+			double allocation = 0;
+			String alloc = "gc.alloc.rate.norm";
+			if(base.has("secondaryMetrics") && base.getAsJsonObject("secondaryMetrics").has(alloc)
+					&& result.has("secondaryMetrics") && result.getAsJsonObject("secondaryMetrics").has(alloc)) {
+				allocation = regression(base.getAsJsonObject("secondaryMetrics").getAsJsonObject(alloc),
+				                        result.getAsJsonObject("secondaryMetrics").getAsJsonObject(alloc), false);
+			}
+			boolean failed = time > tolerance || allocation > tolerance;
+			if(failed) {
+				regressions++;
+			}
+			System.out.println(String.format("%s %+6.1f%% time %+6.1f%% alloc  %s", 
+					failed ? "FAIL" : "OK  ", 100 * time, 100 * allocation, entry.getKey()));
+		}
+		if(regressions > 0) {
+			System.out.println(regressions + " regressions beyond " + (100 * tolerance) + "%");
+			System.exit(1);
+		}
+	}
+}
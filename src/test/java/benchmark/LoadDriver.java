@@ -0,0 +1,305 @@
+package benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
+
+import org.eclipse.jetty.annotations.AnnotationConfiguration;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.webapp.Configuration;
+import org.eclipse.jetty.webapp.FragmentConfiguration;
+import org.eclipse.jetty.webapp.JettyWebXmlConfiguration;
+import org.eclipse.jetty.webapp.MetaInfConfiguration;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.eclipse.jetty.webapp.WebInfConfiguration;
+import org.eclipse.jetty.webapp.WebXmlConfiguration;
+
+import com.google.gson.Gson;
+
+/**
+ * Load test of the webapp on embedded Jetty, run with the loadtest profile.
+ * Each simulated user requests every process once, each starting at a
+ * different process, and pages through it by cursor as the client does,
+ * concurrently with the others. Reports the latency percentiles and
+ * throughput of each process, heap growth, and the state of each user
+ * between requests: the session, kept by cookie as a browser, with the
+ * serialised bytes of it's attributes, and the longest cursor.
+ * Arguments: webapp directory, users, most pages per process.
+ * @author Alastair Crowe
+ */
+public class LoadDriver {
+	/* Processes of the load, as the legs of DiagramBenchmark and vertices. */
+	private static final String[] PROCESSES = {
+		"1,1,0,0,0,2 2", // e e- -> photon photon, tree
+		"2,0,0,2,0,0 2", // e e -> e e, tree
+		"1,0,1,1,0,1 4", // Compton, one loop
+		"1,1,0,1,1,0 4", // Bhabha, one loop
+		"0,0,1,0,0,1 6", // Photon self energy, two loops
+		"1,1,0,1,1,0 6", // Bhabha, two loops, heavy
+	};
+	private static final Pattern CURSOR = Pattern.compile("reqCursor = \"([^\"]*)\"");
+	/* The JSON data parameter of DiagramsServlet of a process, with the names of index.html. */
+	@SuppressWarnings("unused")
+	private static class DiagramRequest {
+		List<String> incomingElectrons;
+		List<String> incomingPositrons;
+		List<String> incomingPhotons;
+		List<String> outgoingElectrons;
+		List<String> outgoingPositrons;
+		List<String> outgoingPhotons;
+		List<String> interactions;
+		boolean topologies;
+		List<List<String>> pinned = Collections.emptyList();
+		List<List<String>> forbidden = Collections.emptyList();
+	}
+	/* Latency and outcome of every request of a process. */
+	private static class Results {
+		final List<Long> nanos = new ArrayList<Long>();
+		long bytes;
+		int pages;
+		int rejected;
+		int failed;
+		int longestCursor;
+		synchronized void add(long nanos, int bytes, int status, String cursor) {
+			this.nanos.add(nanos);
+			this.bytes += bytes;
+			if(status == HttpURLConnection.HTTP_OK) {
+				pages++;
+			} else if(status == HttpURLConnection.HTTP_UNAVAILABLE) {
+				rejected++;
+			} else {
+				failed++;
+			}
+			longestCursor = Math.max(longestCursor, cursor == null ? 0 : cursor.length());
+		}
+	}
+	private static String toJson(String process) {
+		String[] parts = process.split(" ");
+		String[] counts = parts[0].split(",");
+		int[] n = new int[counts.length];
+		for(int i = 0; i < n.length; i++) {
+			n[i] = Integer.parseInt(counts[i]);
+		}
+		DiagramRequest request = new DiagramRequest();
+		request.incomingElectrons = names("i", 0, n[0]);
+		request.incomingPositrons = names("i", n[0], n[1]);
+		request.incomingPhotons = names("i", n[0] + n[1], n[2]);
+		request.outgoingElectrons = names("o", 0, n[3]);
+		request.outgoingPositrons = names("o", n[3], n[4]);
+		request.outgoingPhotons = names("o", n[3] + n[4], n[5]);
+		request.interactions = names("v", 0, Integer.parseInt(parts[1]));
+		return new Gson().toJson(request);
+	}
+	private static List<String> names(String prefix, int start, int length) {
+		List<String> names = new ArrayList<String>(length);
+		for(int i = start; i < start + length; i++) {
+			names.add(prefix + i);
+		}
+		return names;
+	}
+	/* 
+	 * Pages through the process as index.html, until there are no more.
+	 * @param cookie The session cookie of the user, kept as a browser.
+	 */
+	private static void page(String url, String data, int maxPages, Results results, String[] cookie) 
+			throws IOException {
+		String cursor = null;
+		for(int page = 0; page < maxPages; page++) {
+			String query = "data=" + URLEncoder.encode(data, "UTF-8")
+					+ (cursor == null ? "" : "&cursor=" + URLEncoder.encode(cursor, "UTF-8"));
+			long start = System.nanoTime();
+			HttpURLConnection connection = (HttpURLConnection) new URL(url + "?" + query).openConnection();
+			if(cookie[0] != null) {
+				connection.setRequestProperty("Cookie", cookie[0]);
+			}
+			int status = connection.getResponseCode();
+			String setCookie = connection.getHeaderField("Set-Cookie");
+			if(setCookie != null) {
+				cookie[0] = setCookie.split(";", 2)[0];
+			}
+			InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+			String body = in == null ? "" : read(in);
+			long nanos = System.nanoTime() - start;
+			Matcher matcher = CURSOR.matcher(body);
+			String next = status == HttpURLConnection.HTTP_OK && matcher.find() ? matcher.group(1) : null;
+			results.add(nanos, body.length(), status, next);
+			if(next == null || !body.contains("$(\"#more\").show()")) {
+				return;
+			}
+			cursor = next;
+		}
+	}
+	private static String read(InputStream in) throws IOException {
+		try(InputStream stream = in) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for(int read; (read = stream.read(buffer)) != -1;) {
+				out.write(buffer, 0, read);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+	/* Bytes of the value serialised, as a session would be. */
+	private static int serialisedBytes(Object value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		} catch(IOException e) {
+			return -1;
+		}
+		return bytes.size();
+	}
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	/* The q quantile of the sorted latencies in ms. */
+	private static double percentile(List<Long> sorted, double q) {
+		if(sorted.isEmpty()) {
+			return 0;
+		}
+		int index = (int) Math.ceil(q * sorted.size()) - 1;
+		return sorted.get(Math.max(0, index)) / 1e6;
+	}
+	private static void report(String name, Results results, double seconds) {
+		List<Long> sorted = new ArrayList<Long>(results.nanos);
+		Collections.sort(sorted);
+		System.out.printf("%-16s %8d %8d %8d %10.1f %10.1f %10.1f %10d %8d%n", name, results.pages,
+				results.rejected, results.failed, percentile(sorted, 0.5), percentile(sorted, 0.99),
+				sorted.size() / seconds, results.pages == 0 ? 0 : results.bytes / results.pages,
+				results.longestCursor);
+	}
+	@SuppressWarnings("javadoc")
+	public static void main(String[] args) throws Exception {
+		String webapp = args[0];
+		int users = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int maxPages = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		// The webapp on the classes of the classpath, as the WAR
+		Server server = new Server();
+		ServerConnector connector = new ServerConnector(server);
+		server.addConnector(connector);
+		WebAppContext context = new WebAppContext();
+		context.setContextPath("/");
+		context.setResourceBase(webapp);
+		context.setDescriptor(webapp + "/WEB-INF/web.xml");
+		context.setParentLoaderPriority(true);
+		context.setAttribute("org.eclipse.jetty.server.webapp.ContainerIncludeJarPattern",
+				".*/[^/]*servlet-api-[^/]*\\.jar$|.*/[^/]*jstl[^/]*\\.jar$|.*/[^/]*apache-jsp[^/]*\\.jar$");
+		context.setConfigurations(new Configuration[] {new AnnotationConfiguration(), new WebInfConfiguration(),
+				new WebXmlConfiguration(), new MetaInfConfiguration(), new FragmentConfiguration(),
+				new JettyWebXmlConfiguration()});
+		// Sessions created, and the bytes of the attributes of each
+		AtomicInteger sessions = new AtomicInteger();
+		Map<String, Map<String, Integer>> sessionBytes = new ConcurrentHashMap<String, Map<String, Integer>>();
+		context.getSessionHandler().addEventListener(new HttpSessionListener() {
+			@Override
+			public void sessionCreated(HttpSessionEvent se) {
+				sessions.incrementAndGet();
+			}
+			@Override
+			public void sessionDestroyed(HttpSessionEvent se) {
+			}
+		});
+		context.getSessionHandler().addEventListener(new HttpSessionAttributeListener() {
+			@Override
+			public void attributeAdded(HttpSessionBindingEvent event) {
+				sessionBytes.computeIfAbsent(event.getSession().getId(), id -> new ConcurrentHashMap<String, Integer>())
+						.put(event.getName(), serialisedBytes(event.getValue()));
+			}
+			@Override
+			public void attributeRemoved(HttpSessionBindingEvent event) {
+				Map<String, Integer> attributes = sessionBytes.get(event.getSession().getId());
+				if(attributes != null) {
+					attributes.remove(event.getName());
+				}
+			}
+			@Override
+			public void attributeReplaced(HttpSessionBindingEvent event) {
+				attributeAdded(event);
+			}
+		});
+		server.setHandler(context);
+		server.start();
+		String url = "http://localhost:" + connector.getLocalPort() + "/Diagrams";
+		// Compile the JSP and warm up, on a process not of the load
+		page(url, toJson("0,0,1,0,0,1 2"), 1, new Results(), new String[1]);
+		Map<String, Results> results = new LinkedHashMap<String, Results>();
+		for(String process: PROCESSES) {
+			results.put(process, new Results());
+		}
+		long heapBefore = usedHeap();
+		ExecutorService executor = Executors.newFixedThreadPool(users);
+		List<Future<?>> futures = new ArrayList<Future<?>>(users);
+		long start = System.nanoTime();
+		for(int user = 0; user < users; user++) {
+			int first = user;
+			futures.add(executor.submit(() -> {
+				String[] cookie = new String[1];
+				for(int i = 0; i < PROCESSES.length; i++) {
+					String process = PROCESSES[(first + i) % PROCESSES.length];
+					page(url, toJson(process), maxPages, results.get(process), cookie);
+				}
+				return null;
+			}));
+		}
+		for(Future<?> future: futures) {
+			future.get();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		executor.shutdown();
+		long heapAfter = usedHeap();
+		long largestSession = 0;
+		for(Map<String, Integer> attributes: sessionBytes.values()) {
+			long bytes = 0;
+			for(int attributeBytes: attributes.values()) {
+				bytes += attributeBytes;
+			}
+			largestSession = Math.max(largestSession, bytes);
+		}
+		server.stop();
+		System.out.printf("%d users, at most %d pages of each of %d processes, in %.1fs%n",
+				users, maxPages, PROCESSES.length, seconds);
+		System.out.printf("%-16s %8s %8s %8s %10s %10s %10s %10s %8s%n", "process", "pages", "503s",
+				"errors", "p50 ms", "p99 ms", "req/s", "bytes/pg", "cursor");
+		Results all = new Results();
+		for(Map.Entry<String, Results> entry: results.entrySet()) {
+			report(entry.getKey(), entry.getValue(), seconds);
+			Results process = entry.getValue();
+			all.nanos.addAll(process.nanos);
+			all.bytes += process.bytes;
+			all.pages += process.pages;
+			all.rejected += process.rejected;
+			all.failed += process.failed;
+			all.longestCursor = Math.max(all.longestCursor, process.longestCursor);
+		}
+		report("all", all, seconds);
+		System.out.printf("Heap growth %.1fMB, sessions %d (%.1f per user) of at most %d bytes, "
+				+ "longest cursor kept per user %d chars%n", (heapAfter - heapBefore) / 1e6, sessions.get(),
+				sessions.get() / (double) users, largestSession, all.longestCursor);
+		System.exit(all.failed == 0 ? 0 : 1);
+	}
+}
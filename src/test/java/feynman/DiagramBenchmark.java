@@ -0,0 +1,97 @@
+package feynman;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import standardModel.Particle;
+
+/**
+ * Benchmarks of finding sub-diagrams, run with the benchmark profile.
+ * legs are the numbers of incoming electrons, positrons and photons, then
+ * outgoing electrons, positrons and photons.
+ */
+@SuppressWarnings("javadoc")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DiagramBenchmark {
+	@Param({"1,1,0,0,0,2", "1,1,0,1,1,0", "0,0,1,0,0,1"})
+	public String legs;
+	@Param({"2", "4", "6"})
+	public int vertices;
+	private Diagram process;
+	private Diagram subDiagram;
+
+	@Setup
+	public void setUp() {
+		String[] counts = legs.split(",");
+		int[] n = new int[counts.length];
+		for(int i = 0; i < n.length; i++) {
+			n[i] = Integer.parseInt(counts[i]);
+		}
+		process = DiagramTest.process(n[0], n[1], n[2], n[3], n[4], n[5], vertices);
+		Iterator<Diagram> itr = process.searchSubDiagrams();
+		subDiagram = itr.hasNext() ? itr.next().copy() : process;
+	}
+
+	@Benchmark
+	public void getSubDiagrams(Blackhole blackhole) {
+		Iterator<Diagram> itr = process.getSubDiagrams(true);
+		while(itr.hasNext()) {
+			blackhole.consume(itr.next());
+		}
+	}
+
+	@Benchmark
+	public void searchSubDiagrams(Blackhole blackhole) {
+		Iterator<Diagram> itr = process.searchSubDiagrams();
+		while(itr.hasNext()) {
+			blackhole.consume(itr.next());
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Diagram firstSubDiagram() {
+		Iterator<Diagram> itr = process.searchSubDiagrams();
+		return itr.hasNext() ? itr.next() : null;
+	}
+
+	@Benchmark
+	public DiagramCount countSubDiagrams() {
+		return process.countSubDiagrams();
+	}
+
+	@Benchmark
+	public boolean isConnected() {
+		return subDiagram.isConnected();
+	}
+
+	@Benchmark
+	public void getConnections(Blackhole blackhole) {
+		blackhole.consume(subDiagram.getConnections(Particle.ELECTRON));
+		blackhole.consume(subDiagram.getConnections(Particle.PHOTON));
+	}
+
+	@Benchmark
+	public void visitPropagators(Blackhole blackhole) {
+		subDiagram.visitPropagators((from, to, particle) -> blackhole.consume(to));
+	}
+}
@@ -1,16 +1,29 @@
 package feynman;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import standardModel.Interaction;
 import standardModel.Particle;
 
 @SuppressWarnings("javadoc")
@@ -30,6 +43,715 @@ public class DiagramTest {
                                       outgoingElectrons, outgoingPositrons, outgoingPhotons,
                                       vertices);	}
 
+	/* Creates an unconnected diagram with numbered names. */
+	public static Diagram process(int ie, int ip, int ig, int oe, int op, int og, int v) {
+		return new Diagram(names("i", 0, ie), names("i", ie, ip), names("i", ie + ip, ig),
+		                   names("o", 0, oe), names("o", oe, op), names("o", oe + op, og),
+		                   names("v", 0, v));
+	}
+	private static List<String> names(String prefix, int start, int length) {
+		List<String> names = new ArrayList<String>(length);
+		for(int i = start; i < start + length; i++) {
+			names.add(prefix + (i + 1));
+		}
+		return names;
+	}
+	/* Each diagram as a String, in order. */
+	static List<String> toStrings(Iterator<Diagram> itr) {
+		List<String> strings = new ArrayList<String>();
+		while(itr.hasNext()) {
+			Diagram subdiagram = itr.next();
+			strings.add(subdiagram.getConnections(Particle.ELECTRON) + "" + subdiagram.getConnections(Particle.PHOTON));
+		}
+		return strings;
+	}
+	
+	/* The nodes of each vertex are the particles of it's interaction, after the incoming/outgoing. */
+	@Test
+	public void testVertexSlots() {
+		assertEquals(3 + 3 * Interaction.ELECTROMAGNETIC.particles.length, diagram.size());
+		for(int i = 3; i < diagram.size(); i++) {
+			int slot = (i - 3) % Interaction.ELECTROMAGNETIC.particles.length;
+			assertEquals(Interaction.ELECTROMAGNETIC.particles[slot], diagram.particleOf(i));
+			assertEquals(i - slot, diagram.vertexStartOf(i));
+		}
+		assertEquals(-1, diagram.vertexStartOf(0));
+	}
+
+	@Test
+	public void testSearchSubDiagrams() {
+		Diagram[] processes = {diagram,
+		                       process(1, 1, 0, 0, 0, 2, 2),
+		                       process(1, 1, 0, 0, 0, 2, 4),
+		                       process(1, 0, 1, 1, 0, 1, 4),
+		                       process(0, 0, 2, 1, 1, 0, 4),
+		                       process(1, 1, 0, 1, 1, 0, 4),
+		                       process(0, 0, 0, 0, 0, 0, 2),
+		                       process(0, 0, 0, 0, 0, 0, 4),
+		                       process(1, 0, 0, 1, 0, 0, 0),
+		                       process(1, 0, 0, 1, 0, 0, 2),
+		                       process(0, 0, 1, 0, 0, 1, 4),
+		                       process(1, 1, 0, 0, 0, 1, 5)};
+		for(Diagram process: processes) {
+			List<String> expected = toStrings(process.getSubDiagrams(true));
+			assertEquals(expected, toStrings(process.searchSubDiagrams()));
+		}
+	}
+
+	/* The least String of the diagram over all permutations of vertex names. */
+	private static String topology(Diagram diagram, int noOfVertices) {
+		List<String> vertices = names("v", 0, noOfVertices);
+		List<List<String>> permutations = new ArrayList<List<String>>();
+		permutations.add(new ArrayList<String>());
+		for(String vertex: vertices) {
+			List<List<String>> extended = new ArrayList<List<String>>();
+			for(List<String> permutation: permutations) {
+				for(int i = 0; i <= permutation.size(); i++) {
+					List<String> copy = new ArrayList<String>(permutation);
+					copy.add(i, vertex);
+					extended.add(copy);
+				}
+			}
+			permutations = extended;
+		}
+		String least = null;
+		for(List<String> permutation: permutations) {
+			List<String> edges = new ArrayList<String>();
+			for(Particle particle: Arrays.asList(Particle.ELECTRON, Particle.PHOTON)) {
+				for(Map.Entry<String, String> entry: diagram.getConnections(particle).entrySet()) {
+					String from = entry.getKey();
+					String to = entry.getValue();
+					from = vertices.contains(from) ? permutation.get(vertices.indexOf(from)) : from;
+					to = vertices.contains(to) ? permutation.get(vertices.indexOf(to)) : to;
+					if(particle == Particle.PHOTON && from.compareTo(to) > 0) {
+						edges.add(particle + to + "-" + from);
+					} else {
+						edges.add(particle + from + "-" + to);
+					}
+				}
+			}
+			Collections.sort(edges);
+			String string = edges.toString();
+			if(least == null || string.compareTo(least) < 0) {
+				least = string;
+			}
+		}
+		return least;
+	}
+	
+	@Test
+	public void testSearchTopologies() {
+		int[][] processes = {{1, 1, 0, 0, 0, 1, 3},
+		                     {1, 1, 0, 0, 0, 2, 2},
+		                     {1, 1, 0, 0, 0, 2, 4},
+		                     {1, 0, 1, 1, 0, 1, 4},
+		                     {1, 1, 0, 1, 1, 0, 4},
+		                     {0, 0, 0, 0, 0, 0, 2},
+		                     {0, 0, 0, 0, 0, 0, 4},
+		                     {0, 0, 0, 0, 0, 0, 6},
+		                     {0, 0, 1, 0, 0, 1, 4},
+		                     {1, 1, 0, 0, 0, 1, 5}};
+		for(int[] p: processes) {
+			Diagram process = process(p[0], p[1], p[2], p[3], p[4], p[5], p[6]);
+			Set<String> expected = new HashSet<String>();
+			long count = 0;
+			Iterator<Diagram> itr = process.searchSubDiagrams();
+			while(itr.hasNext()) {
+				expected.add(topology(itr.next(), p[6]));
+				count++;
+			}
+			Set<String> topologies = new HashSet<String>();
+			long multiplicities = 0;
+			itr = process.searchTopologies();
+			while(itr.hasNext()) {
+				Diagram topology = itr.next();
+				assertTrue(topologies.add(topology(topology, p[6])));
+				multiplicities += topology.getMultiplicity();
+			}
+			assertEquals(expected, topologies);
+			assertEquals(count, multiplicities);
+		}
+		assertEquals(4, toStrings(diagram.searchTopologies()).size());
+	}
+
+	/* The connections of the diagram relabelled by it's canonical labels. */
+	private static String canonical(Diagram diagram) {
+		int[] labels = diagram.getCanonicalLabels();
+		int base = diagram.size() - 3 * diagram.getNoOfVertices();
+		int[] relabelled = new int[diagram.size()];
+		for(int i = 0; i < relabelled.length; i++) {
+			int c = diagram.connectionOf(i);
+			relabelled[i < base ? i : base + 3 * labels[(i - base) / 3] + (i - base) % 3] =
+					c < base ? c : base + 3 * labels[(c - base) / 3] + (c - base) % 3;
+		}
+		return Arrays.toString(relabelled);
+	}
+
+	@Test
+	public void testCanonicalLabels() {
+		int[][] processes = {{1, 1, 0, 0, 0, 1, 3},
+		                     {1, 1, 0, 0, 0, 2, 4},
+		                     {1, 1, 0, 1, 1, 0, 4},
+		                     {0, 0, 0, 0, 0, 0, 4},
+		                     {0, 0, 1, 0, 0, 1, 4}};
+		for(int[] p: processes) {
+			Diagram process = process(p[0], p[1], p[2], p[3], p[4], p[5], p[6]);
+			// Diagrams have the same canonical form only if of the same topology
+			Map<String, String> canonicals = new HashMap<String, String>();
+			Map<String, String> topologies = new HashMap<String, String>();
+			for(Iterator<Diagram> itr = process.searchSubDiagrams(); itr.hasNext(); ) {
+				Diagram subDiagram = itr.next();
+				String topology = topology(subDiagram, p[6]);
+				String canonical = canonical(subDiagram);
+				assertEquals(canonicals.getOrDefault(topology, canonical), canonical);
+				assertEquals(topologies.getOrDefault(canonical, topology), topology);
+				canonicals.put(topology, canonical);
+				topologies.put(canonical, topology);
+			}
+			// The diagram of each topology is it's canonical form
+			int[] identity = new int[p[6]];
+			for(int v = 0; v < identity.length; v++) {
+				identity[v] = v;
+			}
+			Set<String> topologyForms = new HashSet<String>();
+			for(Iterator<Diagram> itr = process.searchTopologies(); itr.hasNext(); ) {
+				Diagram topology = itr.next();
+				assertTrue(Arrays.equals(identity, topology.getCanonicalLabels()));
+				topologyForms.add(canonical(topology));
+			}
+			assertEquals(topologies.keySet(), topologyForms);
+		}
+		try {
+			diagram.getCanonicalLabels();
+			fail();
+		} catch(IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	/* Splits the spliterator recursively, collecting each part in order. */
+	private static void splitAll(Spliterator<Diagram> spliterator, int depth, List<String> strings) {
+		Spliterator<Diagram> first = depth > 0 ? spliterator.trySplit() : null;
+		if(first != null) {
+			splitAll(first, depth - 1, strings);
+			splitAll(spliterator, depth - 1, strings);
+		} else {
+			spliterator.forEachRemaining(d -> strings.add(d.getConnections(Particle.ELECTRON) + "" + d.getConnections(Particle.PHOTON)));
+		}
+	}
+	
+	@Test
+	public void testSubDiagrams() throws Exception {
+		Diagram[] processes = {diagram,
+		                       process(1, 1, 0, 0, 0, 2, 4),
+		                       process(1, 1, 0, 1, 1, 0, 4),
+		                       process(0, 0, 0, 0, 0, 0, 4),
+		                       process(1, 1, 0, 0, 0, 1, 5)};
+		ForkJoinPool pool = new ForkJoinPool(4);
+		for(Diagram process: processes) {
+			List<String> expected = toStrings(process.searchSubDiagrams());
+			List<String> split = new ArrayList<String>();
+			splitAll(new SubDiagramSpliterator(new SubDiagramSearch(process, false)), 6, split);
+			assertEquals(expected, split);
+			List<String> parallel = pool.submit(() -> process.subDiagrams().parallel()
+					.map(d -> d.getConnections(Particle.ELECTRON) + "" + d.getConnections(Particle.PHOTON))
+					.collect(Collectors.toList())).get();
+			assertEquals(expected, parallel);
+			assertEquals(toStrings(process.searchTopologies()), 
+			             pool.submit(() -> process.topologies().parallel()
+			                 .map(d -> d.getConnections(Particle.ELECTRON) + "" + d.getConnections(Particle.PHOTON))
+			                 .collect(Collectors.toList())).get());
+		}
+		pool.shutdown();
+		assertNotNull(new SubDiagramSpliterator(new SubDiagramSearch(diagram, false)).trySplit());
+	}
+
+	@Test
+	public void testCountSubDiagrams() {
+		int[][] processes = {{1, 1, 0, 0, 0, 1, 3},
+		                     {1, 1, 0, 0, 0, 2, 4},
+		                     {1, 0, 1, 1, 0, 1, 4},
+		                     {1, 1, 0, 1, 1, 0, 4},
+		                     {0, 0, 0, 0, 0, 0, 6},
+		                     {0, 0, 1, 0, 0, 1, 4},
+		                     {1, 0, 0, 1, 0, 0, 0},
+		                     {1, 0, 0, 0, 0, 0, 0},
+		                     {1, 1, 0, 0, 0, 1, 5},
+		                     {1, 1, 0, 0, 0, 2, 6}};
+		for(int[] p: processes) {
+			Diagram process = process(p[0], p[1], p[2], p[3], p[4], p[5], p[6]);
+			DiagramCount count = process.countSubDiagrams();
+			assertTrue(count.isExact());
+			assertEquals(process.subDiagrams().count(), count.getCount());
+			DiagramCount estimate = process.countSubDiagrams(0);
+			assertEquals(estimate.getCount() == 0, estimate.isExact());
+			assertTrue(estimate.getCount() >= count.getCount());
+		}
+		assertEquals(24, diagram.countSubDiagrams().getCount());
+	}
+
+	@Test
+	public void testSeek() {
+		int[][] processes = {{1, 1, 0, 0, 0, 1, 3},
+		                     {1, 1, 0, 0, 0, 2, 4},
+		                     {0, 0, 0, 0, 0, 0, 4},
+		                     {1, 0, 0, 1, 0, 0, 0},
+		                     {1, 1, 0, 0, 0, 1, 5}};
+		for(int[] p: processes) {
+			Diagram process = process(p[0], p[1], p[2], p[3], p[4], p[5], p[6]);
+			List<String> expected = toStrings(process.searchSubDiagrams());
+			for(int n = 0; n <= expected.size() + 1; n += 1 + expected.size() / 7) {
+				List<String> tail = expected.subList(Math.min(n, expected.size()), expected.size());
+				assertEquals(tail, toStrings(process.searchSubDiagrams(n)));
+				Diagram subDiagram = process.getSubDiagram(n);
+				if(n < expected.size()) {
+					assertEquals(expected.get(n), toStrings(Arrays.asList(subDiagram).iterator()).get(0));
+				} else {
+					assertNull(subDiagram);
+				}
+			}
+			List<String> topologies = toStrings(process.searchTopologies());
+			assertEquals(topologies.subList(1, topologies.size()), toStrings(process.searchTopologies(1)));
+		}
+	}
+
+	@Test
+	public void testCursor() {
+		Diagram[] processes = {diagram,
+		                       process(1, 1, 0, 0, 0, 2, 4),
+		                       process(1, 0, 0, 1, 0, 0, 0)};
+		for(Diagram process: processes) {
+			List<String> expected = toStrings(process.searchSubDiagrams());
+			for(int n = 0; n <= expected.size(); n += 1 + expected.size() / 5) {
+				DiagramIterator itr = process.searchSubDiagrams();
+				for(int i = 0; i < n; i++) {
+					itr.next();
+				}
+				// Before and after looking ahead
+				DiagramIterator resumed = process.searchSubDiagrams(itr.getCursor());
+				assertEquals(n, resumed.getIndex());
+				assertEquals(expected.subList(n, expected.size()), toStrings(resumed));
+				itr.hasNext();
+				assertEquals(expected.subList(n, expected.size()), toStrings(process.searchSubDiagrams(itr.getCursor())));
+			}
+			List<String> topologies = toStrings(process.searchTopologies());
+			DiagramIterator itr = process.searchTopologies();
+			itr.next();
+			assertEquals(topologies.subList(1, topologies.size()), toStrings(process.searchTopologies(itr.getCursor())));
+		}
+		String cursor = process(1, 1, 0, 0, 0, 2, 4).searchSubDiagrams(7).getCursor();
+		for(String invalid: Arrays.asList("", "AQ", cursor.substring(0, cursor.length() - 2), "!!")) {
+			try {
+				diagram.searchSubDiagrams(invalid);
+				fail(invalid);
+			} catch(IllegalArgumentException e) {
+				// Expected
+			}
+		}
+		try {
+			diagram.searchTopologies(diagram.searchSubDiagrams().getCursor());
+			fail();
+		} catch(IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/* A cursor of version 1 with the flags and the varints. */
+	private static String cursor(int flags, long... varints) {
+		java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+		bytes.write(1);
+		bytes.write(flags);
+		for(long value: varints) {
+			while((value & ~0x7FL) != 0) {
+				bytes.write((int) (value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes.write((int) value);
+		}
+		return java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+	}
+
+	@Test
+	public void testBadCursors() {
+		Diagram process = process(1, 1, 0, 0, 0, 2, 4);
+		// Index, base, depth, partners then limits
+		assertEquals(toStrings(process.searchSubDiagrams()), toStrings(process.searchSubDiagrams(cursor(0, 0, 0, 0))));
+		String[] invalid = {
+			cursor(0, -1, 0, 0),
+			cursor(0, 0, -1, 0),
+			cursor(0, 0, 0, -1),
+			cursor(0, 0, 0, Integer.MAX_VALUE + 1L),
+			cursor(0, 0, 2, 1, 0),
+			cursor(0, 0, 0, 1, -1),
+			cursor(0, 0, 0, 1, process.size()),
+			cursor(0, 0, 0, 1, Integer.MAX_VALUE + 1L),
+			cursor(8, 0, 0, 1, 0, -1),
+			cursor(8, 0, 0, 1, 0, process.size() + 1),
+			cursor(8, 0, 0, 1, 0, Integer.MAX_VALUE + 2L),
+			cursor(3, 0, 0, 0),
+		};
+		for(String cursor: invalid) {
+			try {
+				DiagramIterator itr = process.searchSubDiagrams(cursor);
+				while(itr.hasNext()) {
+					itr.next();
+				}
+				fail(cursor);
+			} catch(IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testPartition() {
+		Diagram[] processes = {diagram,
+		                       process(1, 1, 0, 0, 0, 2, 4),
+		                       process(1, 1, 0, 1, 1, 0, 4),
+		                       process(1, 0, 0, 1, 0, 0, 0)};
+		DiagramFilter filter = DiagramFilter.ALL.onePI();
+		for(Diagram process: processes) {
+			for(int parts: new int[] {1, 2, 7, 64}) {
+				List<String> cursors = process.partitionSubDiagrams(DiagramFilter.ALL, parts);
+				assertTrue(cursors.size() <= parts);
+				List<String> diagrams = new ArrayList<String>();
+				for(String cursor: cursors) {
+					diagrams.addAll(toStrings(process.searchSubDiagrams(DiagramFilter.ALL, cursor)));
+				}
+				assertEquals(toStrings(process.searchSubDiagrams()), diagrams);
+				diagrams.clear();
+				for(String cursor: process.partitionSubDiagrams(filter, parts)) {
+					diagrams.addAll(toStrings(process.searchSubDiagrams(filter, cursor)));
+				}
+				assertEquals(toStrings(process.searchSubDiagrams(filter)), diagrams);
+				diagrams.clear();
+				for(String cursor: process.partitionTopologies(DiagramFilter.ALL, parts)) {
+					diagrams.addAll(toStrings(process.searchTopologies(DiagramFilter.ALL, cursor)));
+				}
+				assertEquals(toStrings(process.searchTopologies()), diagrams);
+			}
+		}
+		assertEquals(7, process(1, 1, 0, 1, 1, 0, 4).partitionSubDiagrams(DiagramFilter.ALL, 7).size());
+	}
+
+	@Test
+	public void testBudget() {
+		Diagram process = process(1, 1, 0, 0, 0, 2, 4);
+		DiagramFilter[] filters = {DiagramFilter.ALL, DiagramFilter.ALL.onePI()};
+		for(DiagramFilter filter: filters) {
+			for(boolean topologies: new boolean[] {false, true}) {
+				List<String> expected = toStrings(topologies ? process.searchTopologies(filter) 
+						: process.searchSubDiagrams(filter));
+				List<String> resumed = new ArrayList<String>();
+				DiagramIterator itr = topologies ? process.searchTopologies(filter) : process.searchSubDiagrams(filter);
+				itr.setBudget(7, Long.MAX_VALUE);
+				while(true) {
+					resumed.addAll(toStrings(itr));
+					if(!itr.isOverBudget()) {
+						break;
+					}
+					String cursor = itr.getCursor();
+					itr = topologies ? process.searchTopologies(filter, cursor) : process.searchSubDiagrams(filter, cursor);
+					itr.setBudget(7, Long.MAX_VALUE);
+				}
+				assertEquals(expected, resumed);
+			}
+		}
+		DiagramIterator itr = process.searchSubDiagrams();
+		itr.setBudget(Long.MAX_VALUE, 0);
+		assertFalse(itr.hasNext());
+		assertTrue(itr.isOverBudget());
+		itr.setBudget(Long.MAX_VALUE, Long.MAX_VALUE);
+		assertTrue(itr.hasNext());
+	}
+
+	@Test
+	public void testVisitPropagators() {
+		Iterator<Diagram> itr = process(1, 1, 1, 1, 1, 0, 5).searchSubDiagrams();
+		while(itr.hasNext()) {
+			Diagram subDiagram = itr.next();
+			Map<String, String> electrons = new HashMap<String, String>();
+			Map<String, String> photons = new HashMap<String, String>();
+			subDiagram.visitPropagators((from, to, particle) -> 
+					assertNull((particle == Particle.ELECTRON ? electrons : photons).put(from, to)));
+			assertEquals(subDiagram.getConnections(Particle.ELECTRON), electrons);
+			assertEquals(subDiagram.getConnections(Particle.PHOTON), photons);
+		}
+	}
+
+	@Test
+	public void testSearchMetrics() {
+		long visited = SearchMetrics.getStatesVisited();
+		long emitted = SearchMetrics.getDiagramsEmitted();
+		assertEquals(24, toStrings(diagram.searchSubDiagrams()).size());
+		assertTrue(SearchMetrics.getStatesVisited() > visited);
+		assertTrue(SearchMetrics.getDiagramsEmitted() >= emitted + 24);
+	}
+
+	/* Whether the diagram has a bridge of each kind: tadpole, self-energy, other. */
+	private static boolean[] bridges(Diagram diagram) {
+		boolean[] kinds = new boolean[3];
+		for(int edge = 0; edge < diagram.size(); edge++) {
+			int other = diagram.connectionOf(edge);
+			if(edge > other) {
+				continue;
+			}
+			// The side of the edge's node, without the edge
+			Set<String> side = new HashSet<String>();
+			List<String> pending = new ArrayList<String>();
+			pending.add(diagram.nameOf(edge));
+			side.add(diagram.nameOf(edge));
+			while(!pending.isEmpty()) {
+				String name = pending.remove(pending.size() - 1);
+				for(int i = 0; i < diagram.size(); i++) {
+					int j = diagram.connectionOf(i);
+					if(diagram.nameOf(i).equals(name) && i != edge && i != other && side.add(diagram.nameOf(j))) {
+						pending.add(diagram.nameOf(j));
+					}
+				}
+			}
+			if(side.contains(diagram.nameOf(other))) {
+				continue;
+			}
+			Set<String> all = new HashSet<String>();
+			for(int i = 0; i < diagram.size(); i++) {
+				all.add(diagram.nameOf(i));
+			}
+			Set<String> rest = new HashSet<String>(all);
+			rest.removeAll(side);
+			int[] externals = new int[2];
+			int[] vertices = new int[2];
+			int k = 0;
+			for(Set<String> part: Arrays.asList(side, rest)) {
+				for(String name: part) {
+					if(name.startsWith("v")) {
+						vertices[k]++;
+					} else {
+						externals[k]++;
+					}
+				}
+				k++;
+			}
+			if((vertices[0] == 0 && externals[0] == 1) || (vertices[1] == 0 && externals[1] == 1)) {
+				continue;
+			}
+			kinds[externals[0] == 0 || externals[1] == 0 ? 0 : externals[0] == 1 || externals[1] == 1 ? 1 : 2] = true;
+		}
+		return kinds;
+	}
+
+	@Test
+	public void testFilters() {
+		DiagramFilter[] filters = {DiagramFilter.ALL.noTadpoles(), DiagramFilter.ALL.noSelfEnergies(), 
+		                           DiagramFilter.ALL.onePI(), DiagramFilter.ALL.noTadpoles().noSelfEnergies()};
+		Diagram[] processes = {process(1, 1, 0, 0, 0, 2, 4), process(1, 0, 0, 0, 1, 0, 4), 
+		                       process(0, 0, 1, 0, 0, 1, 4), process(1, 1, 0, 1, 1, 0, 4), process(0, 0, 2, 0, 0, 0, 4)};
+		for(Diagram process: processes) {
+			for(DiagramFilter filter: filters) {
+				List<String> expected = new ArrayList<String>();
+				long multiplicities = 0;
+				Iterator<Diagram> itr = process.searchSubDiagrams();
+				while(itr.hasNext()) {
+					Diagram subDiagram = itr.next();
+					boolean[] kinds = bridges(subDiagram);
+					if((!kinds[0] || filter.isTadpoles()) && (!kinds[1] || filter.isSelfEnergies()) 
+							&& (!kinds[2] || filter.isReducible())) {
+						expected.add(subDiagram.getConnections(Particle.ELECTRON) + "" + subDiagram.getConnections(Particle.PHOTON));
+					}
+				}
+				assertEquals(filter + " " + process.getSignature(), expected, toStrings(process.searchSubDiagrams(filter)));
+				itr = process.searchTopologies(filter);
+				while(itr.hasNext()) {
+					multiplicities += itr.next().getMultiplicity();
+				}
+				assertEquals(expected.size(), multiplicities);
+				DiagramCount count = process.countSubDiagrams(filter);
+				assertTrue(count.getCount() >= expected.size());
+				if(expected.size() > 3) {
+					assertEquals(expected.subList(3, expected.size()), toStrings(process.searchSubDiagrams(filter, 3)));
+				}
+			}
+		}
+		Diagram tree = process(1, 1, 0, 0, 0, 2, 2);
+		assertEquals(0, tree.getLoops());
+		assertEquals(toStrings(tree.searchSubDiagrams()), toStrings(tree.searchSubDiagrams(DiagramFilter.ALL.maxLoops(0))));
+		Diagram loop = process(1, 1, 0, 0, 0, 2, 4);
+		assertEquals(1, loop.getLoops());
+		assertFalse(loop.searchSubDiagrams(DiagramFilter.ALL.maxLoops(0)).hasNext());
+		assertEquals(0, loop.countSubDiagrams(DiagramFilter.ALL.maxLoops(0)).getCount());
+	}
+
+	@Test
+	public void testRelabel() {
+		Diagram renamed = new Diagram(Arrays.asList("e"), Arrays.asList("p"), Arrays.<String>asList(),
+		                              Arrays.<String>asList(), Arrays.<String>asList(), Arrays.asList("g"),
+		                              Arrays.asList("a", "b", "c"));
+		assertEquals(diagram.getSignature(), renamed.getSignature());
+		assertFalse(diagram.getSignature().equals(process(1, 1, 0, 0, 1, 0, 3).getSignature()));
+		List<String> expected = toStrings(renamed.searchSubDiagrams());
+		List<String> relabelled = new ArrayList<String>();
+		Iterator<Diagram> itr = diagram.searchSubDiagrams();
+		while(itr.hasNext()) {
+			Diagram subDiagram = itr.next().relabel(renamed);
+			relabelled.add(subDiagram.getConnections(Particle.ELECTRON) + "" + subDiagram.getConnections(Particle.PHOTON));
+		}
+		assertEquals(expected, relabelled);
+		try {
+			diagram.relabel(process(1, 1, 0, 0, 1, 0, 3));
+			fail();
+		} catch(IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testSnapshots() {
+		String before = diagram.toString();
+		List<String> expected = toStrings(diagram.searchSubDiagrams());
+		List<Diagram> snapshots = new ArrayList<Diagram>();
+		Iterator<Diagram> itr = diagram.searchSubDiagrams();
+		while(itr.hasNext()) {
+			snapshots.add(itr.next().copy());
+		}
+		assertEquals(expected, toStrings(snapshots.iterator()));
+		assertEquals(before, diagram.toString());
+		assertEquals(-1, diagram.connectionOf(0));
+		assertEquals(expected, toStrings(diagram.subDiagrams().iterator()));
+	}
+
+	@Test
+	public void testConnect() {
+		Iterator<Diagram> itr = diagram.searchSubDiagrams();
+		while(itr.hasNext()) {
+			Diagram subDiagram = itr.next();
+			int[] connections = new int[subDiagram.size()];
+			for(int i = 0; i < connections.length; i++) {
+				connections[i] = subDiagram.connectionOf(i);
+			}
+			assertEquals(subDiagram.toString(), diagram.connect(connections, 1, 1).toString());
+		}
+		try {
+			diagram.connect(new int[diagram.size()], 1, 1);
+			fail();
+		} catch(IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testCross() {
+		Diagram[] processes = {diagram,
+		                       process(1, 1, 0, 0, 0, 2, 4),
+		                       process(1, 0, 1, 1, 0, 0, 3),
+		                       process(0, 0, 2, 1, 1, 0, 4)};
+		for(Diagram process: processes) {
+			Diagram family = process.allIncoming();
+			List<Diagram> crossings = process.getCrossings();
+			assertEquals(family.getSignature(), crossings.get(0).getSignature());
+			for(DiagramFilter filter: new DiagramFilter[] {DiagramFilter.ALL, DiagramFilter.ALL.onePI()}) {
+				List<Diagram> familyDiagrams = new ArrayList<Diagram>();
+				List<Diagram> familyTopologies = new ArrayList<Diagram>();
+				for(Iterator<Diagram> itr = family.searchSubDiagrams(filter); itr.hasNext(); ) {
+					familyDiagrams.add(itr.next().copy());
+				}
+				for(Iterator<Diagram> itr = family.searchTopologies(filter); itr.hasNext(); ) {
+					familyTopologies.add(itr.next().copy());
+				}
+				for(Diagram crossing: crossings) {
+					assertEquals(family.getSignature(), crossing.allIncoming().getSignature());
+					List<String> expected = toStrings(crossing.searchSubDiagrams(filter));
+					List<Diagram> crossed = new ArrayList<Diagram>();
+					for(Diagram subDiagram: familyDiagrams) {
+						crossed.add(subDiagram.cross(crossing));
+					}
+					List<String> actual = toStrings(crossed.iterator());
+					Collections.sort(expected);
+					Collections.sort(actual);
+					assertEquals(expected, actual);
+					long multiplicity = 0;
+					for(Diagram topology: familyTopologies) {
+						multiplicity += topology.cross(crossing).getMultiplicity();
+					}
+					assertEquals(expected.size(), multiplicity);
+				}
+			}
+		}
+		try {
+			diagram.cross(process(1, 1, 0, 0, 0, 0, 3));
+			fail();
+		} catch(IllegalArgumentException e) {
+			// Expected
+		}
+		try {
+			process(1, 0, 0, 1, 0, 0, 0).getSubDiagram(0).cross(process(1, 1, 0, 0, 0, 0, 0));
+			fail();
+		} catch(IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/* @return true if a node of name1 is connected to a node of name2. */
+	private static boolean isConnected(Diagram diagram, String name1, String name2) {
+		for(int i = 0; i < diagram.size(); i++) {
+			int connection = diagram.connectionOf(i);
+			if(diagram.nameOf(i).equals(name1) && connection != -1 && diagram.nameOf(connection).equals(name2)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Test
+	public void testConstraints() {
+		Diagram process = process(1, 1, 0, 0, 0, 2, 4);
+		String[][][] constraints = {{{"i1", "v1"}}, {{"v1", "v2"}}, {{}, {"o2", "v4"}}, 
+		                            {{"i1", "v2"}, {"v1", "v3"}}, {{"v2", "v3"}, {"i1", "v1"}}};
+		for(DiagramFilter filter: new DiagramFilter[] {DiagramFilter.ALL, DiagramFilter.ALL.onePI()}) {
+			for(String[][] constraint: constraints) {
+				String[] pin = constraint[0];
+				String[] forbid = constraint.length > 1 ? constraint[1] : new String[0];
+				Diagram constrained = process;
+				if(pin.length > 0) {
+					constrained = constrained.pin(pin[0], pin[1]);
+				}
+				if(forbid.length > 0) {
+					constrained = constrained.forbid(forbid[0], forbid[1]);
+				}
+				List<Diagram> expected = new ArrayList<Diagram>();
+				Iterator<Diagram> itr = process.searchSubDiagrams(filter);
+				while(itr.hasNext()) {
+					Diagram subDiagram = itr.next();
+					if((pin.length == 0 || isConnected(subDiagram, pin[0], pin[1]))
+							&& (forbid.length == 0 || !isConnected(subDiagram, forbid[0], forbid[1]))) {
+						expected.add(subDiagram.copy());
+					}
+				}
+				List<String> results = toStrings(constrained.searchSubDiagrams(filter));
+				assertEquals(toStrings(expected.iterator()), results);
+				if(filter == DiagramFilter.ALL) {
+					assertEquals(results, toStrings(constrained.getSubDiagrams(true)));
+				}
+				DiagramCount count = constrained.countSubDiagrams(filter);
+				assertTrue(count.getCount() >= results.size());
+				assertEquals(count.isExact(), count.getCount() == results.size());
+				int n = results.size() / 2;
+				assertEquals(results.subList(n, results.size()), toStrings(constrained.searchSubDiagrams(filter, n)));
+			}
+		}
+		try {
+			process.pin("i1", "i2");
+			fail();
+		} catch(IllegalArgumentException e) {
+			// Expected
+		}
+		try {
+			process.pin("i1", "v1").searchTopologies();
+			fail();
+		} catch(UnsupportedOperationException e) {
+			// Expected
+		}
+	}
+
 	@Test
 	public void testGetSubDiagrams() {
 		class Connections {
@@ -0,0 +1,102 @@
+package server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import feynman.Diagram;
+import feynman.DiagramIterator;
+import feynman.DiagramTest;
+
+@SuppressWarnings("javadoc")
+public class CompactEncoderTest {
+	private static final String DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+	/* Applies a delta to the connections, as decodeCompact in autofeyn.js. */
+	private static void decode(String delta, int[] connections) {
+		int[] pos = {0};
+		int node = 0;
+		while(pos[0] < delta.length()) {
+			node += readVarint(delta, pos);
+			int other = readVarint(delta, pos);
+			connections[node] = other;
+			connections[other] = node;
+		}
+	}
+	private static int readVarint(String delta, int[] pos) {
+		int value = 0;
+		int digit;
+		int shift = 0;
+		do {
+			digit = DIGITS.indexOf(delta.charAt(pos[0]++));
+			assertTrue(digit >= 0);
+			value += (digit & 31) << shift;
+			shift += 5;
+		} while(digit >= 32);
+		return value;
+	}
+	private static int[] connections(Diagram diagram) {
+		int[] connections = new int[diagram.size()];
+		for(int i = 0; i < connections.length; i++) {
+			connections[i] = diagram.connectionOf(i);
+		}
+		return connections;
+	}
+	/* Decodes the first diagrams of the iterator from the deltas, in order and after a reset. */
+	private static long roundTrip(Diagram process, DiagramIterator itr) {
+		CompactEncoder encoder = new CompactEncoder(process);
+		int[] decoded = new int[process.size()];
+		Arrays.fill(decoded, -1);
+		long diagrams = 0;
+		for(; diagrams < 2000 && itr.hasNext(); diagrams++) {
+			Diagram diagram = itr.next();
+			if(diagrams % 7 == 6) {
+				encoder.reset();
+				Arrays.fill(decoded, -1);
+			}
+			decode(encoder.encode(diagram), decoded);
+			assertArrayEquals(connections(diagram), decoded);
+		}
+		return diagrams;
+	}
+
+	@Test
+	public void testRoundTrip() {
+		Diagram[] processes = {DiagramTest.process(1, 1, 0, 0, 0, 1, 3),
+		                       DiagramTest.process(1, 1, 0, 1, 1, 0, 4),
+		                       DiagramTest.process(0, 0, 2, 1, 1, 0, 4),
+		                       DiagramTest.process(0, 0, 0, 0, 0, 0, 4),
+		                       DiagramTest.process(2, 2, 0, 2, 2, 0, 6)};
+		for(Diagram process: processes) {
+			assertTrue(roundTrip(process, process.searchSubDiagrams()) > 0);
+			roundTrip(process, process.searchTopologies());
+		}
+	}
+
+	/* Indices of more than 5 bits take more than one digit. */
+	@Test
+	public void testLongVarints() {
+		Diagram process = DiagramTest.process(2, 2, 0, 2, 2, 1, 9);
+		assertTrue(process.size() > 32);
+		assertEquals(2000, roundTrip(process, process.searchSubDiagrams()));
+	}
+
+	@Test
+	public void testHeader() {
+		Diagram process = DiagramTest.process(1, 1, 0, 0, 0, 1, 1);
+		JsonObject header = new JsonParser().parse(CompactEncoder.header(process)).getAsJsonObject();
+		assertEquals(process.size(), header.getAsJsonArray("names").size());
+		assertEquals(process.size(), header.getAsJsonArray("particles").size());
+		for(int i = 0; i < process.size(); i++) {
+			assertEquals(process.nameOf(i), header.getAsJsonArray("names").get(i).getAsString());
+			assertEquals(process.particleOf(i).name(), header.getAsJsonArray("particles").get(i).getAsString());
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+import feynman.Diagram;
+import feynman.DiagramTest;
+import standardModel.Particle;
+
+/**
+ * Benchmarks of converting a diagram to JSON, it's layout as sent by
+ * DiagramsServlet and it's connections as streamed by DiagramStreamServlet,
+ * run with the benchmark profile.
+ */
+@SuppressWarnings("javadoc")
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConnectionsJsonBenchmark {
+	@Param({"2", "6"})
+	public int vertices;
+	private Diagram subDiagram;
+	private ConnectionsJson json;
+	private DiagramLayout layout;
+	private DiagramLayout uncached;
+
+	@Setup
+	public void setUp() {
+		Iterator<Diagram> itr = DiagramTest.process(1, 1, 0, 0, 0, 2, vertices).searchSubDiagrams();
+		subDiagram = itr.next().copy();
+		json = new ConnectionsJson();
+		layout = new DiagramLayout(1 << 20);
+		uncached = new DiagramLayout(0);
+	}
+
+	/* As DiagramsServlet, of which the layout of the topology is cached. */
+	@Benchmark
+	public String layout() {
+		return layout.toJson(subDiagram);
+	}
+
+	/* Every layout heavier than the cache, so laid out each time. */
+	@Benchmark
+	public String layoutUncached() {
+		return uncached.toJson(subDiagram);
+	}
+
+	/* The conversion before visitPropagators, for comparison. */
+	@Benchmark
+	public String gson() {
+		Gson gson = new Gson();
+		List<String> electrons = new ArrayList<String>();
+		for(Map.Entry<String, String> entry: subDiagram.getConnections(Particle.ELECTRON).entrySet()) {
+			electrons.add(entry.getKey() + "-" + entry.getValue());
+		}
+		List<String> photons = new ArrayList<String>();
+		for(Map.Entry<String, String> entry: subDiagram.getConnections(Particle.PHOTON).entrySet()) {
+			photons.add(entry.getKey() + "-" + entry.getValue());
+		}
+		return gson.toJson(electrons) + gson.toJson(photons);
+	}
+
+	@Benchmark
+	public String connectionsJson() {
+		json.write(subDiagram);
+		return json.getElectrons() + json.getPhotons();
+	}
+
+	@Benchmark
+	public String compact() {
+		return new CompactEncoder(subDiagram).encode(subDiagram);
+	}
+}
@@ -0,0 +1,111 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import feynman.Diagram;
+import feynman.DiagramTest;
+
+@SuppressWarnings("javadoc")
+public class DiagramLayoutTest {
+	/*
+	 * Diagrams in canonical form, so laid out as they are, of which each
+	 * pair of nodes has each grouping of lines and arcs, of fermions and
+	 * photons, with the options autofeyn.js gave for them: the process as DiagramTest.process, the connections of the
+	 * diagram and the layout.
+	 */
+	private static final String GOLDEN = "/layout/autofeyn.jsonl";
+	private final DiagramLayout layout = new DiagramLayout(1 << 20);
+
+	@Test
+	public void testAutofeynLayouts() throws IOException {
+		Set<String> arcs = new HashSet<String>();
+		int diagrams = 0;
+		try(BufferedReader in = new BufferedReader(new InputStreamReader(
+				DiagramLayoutTest.class.getResourceAsStream(GOLDEN), StandardCharsets.UTF_8))) {
+			for(String line = in.readLine(); line != null; line = in.readLine()) {
+				JsonObject golden = new JsonParser().parse(line).getAsJsonObject();
+				int[] process = new Gson().fromJson(golden.get("process"), int[].class);
+				int[] connections = new Gson().fromJson(golden.get("connections"), int[].class);
+				Diagram diagram = DiagramTest.process(process[0], process[1], process[2], process[3],
+						process[4], process[5], process[6]).connect(connections, 1, 1);
+				JsonObject options = new JsonParser().parse(layout.toJson(diagram)).getAsJsonObject();
+				assertEquals(line, golden.get("layout"), options);
+				for(String type: new String[] {"fermion", "photon"}) {
+					if(!options.getAsJsonObject(type).get("arc").getAsString().isEmpty()) {
+						arcs.add(type);
+					}
+				}
+				diagrams++;
+			}
+		}
+		assertTrue(diagrams > 10);
+		assertEquals(2, arcs.size());
+	}
+
+	/* Diagrams differing only by vertex labels are laid out from one cached layout. */
+	@Test
+	public void testPermutedHit() {
+		Diagram process = DiagramTest.process(1, 1, 0, 0, 0, 1, 3);
+		int externals = 3;
+		Diagram diagram = process.searchSubDiagrams().next().copy();
+		JsonObject expected = new JsonParser().parse(layout.toJson(diagram)).getAsJsonObject();
+		assertEquals(1, layout.getCache().size());
+		// The vertex at each position moved, with it's name, to the next position
+		int[] permutation = {1, 2, 0};
+		List<String> names = Arrays.asList("v3", "v1", "v2");
+		List<String> none = Arrays.asList();
+		Diagram permutedProcess = new Diagram(Arrays.asList("i1"), Arrays.asList("i2"), none, none, none,
+				Arrays.asList("o1"), names);
+		int[] connections = new int[diagram.size()];
+		for(int i = 0; i < connections.length; i++) {
+			connections[permute(i, externals, permutation)] = permute(diagram.connectionOf(i), externals, permutation);
+		}
+		Diagram permuted = permutedProcess.connect(connections, 1, 1);
+		long hits = layout.getCache().getHits();
+		assertEquals(expected, new JsonParser().parse(layout.toJson(permuted)).getAsJsonObject());
+		assertEquals(hits + 1, layout.getCache().getHits());
+		assertEquals(1, layout.getCache().size());
+		// One layout of each topology
+		for(Iterator<Diagram> itr = process.searchSubDiagrams(); itr.hasNext(); ) {
+			layout.toJson(itr.next());
+		}
+		int topologies = 0;
+		for(Iterator<Diagram> itr = process.searchTopologies(); itr.hasNext(); itr.next()) {
+			topologies++;
+		}
+		assertEquals(topologies, layout.getCache().size());
+	}
+	private static int permute(int node, int externals, int[] permutation) {
+		return node < externals ? node : externals + 3 * permutation[(node - externals) / 3] + (node - externals) % 3;
+	}
+
+	/* Names are escaped in the JSON of the layout. */
+	@Test
+	public void testEscapedNames() {
+		List<String> none = Arrays.asList();
+		Diagram process = new Diagram(Arrays.asList("<e>"), Arrays.asList("e\"+"), none,
+				none, none, Arrays.asList("g\\"), Arrays.asList("v'"));
+		JsonObject options = new JsonParser().parse(layout.toJson(process.searchSubDiagrams().next())).getAsJsonObject();
+		assertTrue(options.getAsJsonObject("incoming").has("<e>"));
+		assertTrue(options.getAsJsonObject("incoming").has("e\"+"));
+		assertTrue(options.getAsJsonObject("outgoing").has("g\\"));
+		assertEquals("<e>-v',v'-e\"+", options.getAsJsonObject("fermion").get("line").getAsString());
+	}
+}
@@ -0,0 +1,109 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import feynman.Diagram;
+import feynman.DiagramFilter;
+import feynman.DiagramTest;
+
+@SuppressWarnings("javadoc")
+public class DiagramStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private DiagramsServlet servlet;
+	/* The crossing family of e- e+ -> photon with 5 vertices, as DiagramsServlet searches. */
+	private final Diagram family = DiagramTest.process(1, 1, 0, 0, 0, 1, 5).allIncoming();
+
+	@Before
+	public void setUp() throws Exception {
+		servlet = new DiagramsServlet();
+		servlet.init(ServletStubs.config(new HashMap<String, String>()));
+	}
+	@After
+	public void tearDown() {
+		servlet.destroy();
+	}
+	private DiagramStore write(boolean topologies) throws IOException {
+		File file = folder.newFile();
+		long count = DiagramStore.write(family, topologies, DiagramFilter.ALL, file);
+		DiagramStore store = new DiagramStore(file);
+		assertEquals(count, store.getCount());
+		assertEquals(DiagramStore.keyOf(family, topologies, DiagramFilter.ALL), store.getKey());
+		// Some pages, the last partial
+		assertTrue(count > 2 * DiagramStore.PAGE_SIZE);
+		assertTrue(count % DiagramStore.PAGE_SIZE != 0);
+		return store;
+	}
+	private static void assertPageEquals(DiagramPage expected, DiagramPage actual) {
+		assertNotNull(actual);
+		assertEquals(expected.getIndex(), actual.getIndex());
+		assertEquals(expected.isMore(), actual.isMore());
+		assertEquals(expected.getCursor(), actual.getCursor());
+		assertEquals(expected.getTotal(), actual.getTotal());
+		assertEquals(expected.getDiagrams().size(), actual.getDiagrams().size());
+		for(int i = 0; i < expected.getDiagrams().size(); i++) {
+			Diagram diagram = expected.getDiagrams().get(i);
+			Diagram read = actual.getDiagrams().get(i);
+			assertEquals(diagram.size(), read.size());
+			for(int node = 0; node < diagram.size(); node++) {
+				assertEquals(diagram.nameOf(node), read.nameOf(node));
+				assertEquals(diagram.connectionOf(node), read.connectionOf(node));
+			}
+			assertEquals(diagram.getMultiplicity(), read.getMultiplicity());
+			assertEquals(diagram.getSymmetryFactor(), read.getSymmetryFactor());
+		}
+	}
+	/* Every page by index and by the cursor of the previous page is as calculated. */
+	private void assertPagesCalculated(boolean topologies) throws IOException {
+		DiagramStore store = write(topologies);
+		for(long from = 0; from <= store.getCount(); from += DiagramStore.PAGE_SIZE) {
+			DiagramPage calculated = servlet.calculatePage(family, topologies, DiagramFilter.ALL, null, from);
+			assertPageEquals(calculated, store.getPage(family, null, from));
+		}
+		DiagramPage stored = store.getPage(family, null, 0);
+		DiagramPage calculated = servlet.calculatePage(family, topologies, DiagramFilter.ALL, null, 0);
+		int cursors = 1;
+		for(; stored.isMore(); cursors++) {
+			String cursor = stored.getCursor();
+			stored = store.getPage(family, cursor, 0);
+			calculated = servlet.calculatePage(family, topologies, DiagramFilter.ALL, cursor, 0);
+			assertPageEquals(calculated, stored);
+		}
+		assertEquals((store.getCount() + DiagramStore.PAGE_SIZE - 1) / DiagramStore.PAGE_SIZE, cursors);
+	}
+
+	@Test
+	public void testPages() throws IOException {
+		assertPagesCalculated(false);
+	}
+
+	@Test
+	public void testTopologyPages() throws IOException {
+		assertPagesCalculated(true);
+	}
+
+	@Test
+	public void testMissingPages() throws IOException {
+		DiagramStore store = write(false);
+		assertNull(store.getPage(family, null, 4));
+		assertNull(store.getPage(family, null, DiagramStore.PAGE_SIZE + 1));
+		assertNull(store.getPage(family, null, store.getCount() + DiagramStore.PAGE_SIZE));
+		assertNull(store.getPage(family, family.searchSubDiagrams(4).getCursor(), 0));
+		assertNotNull(store.getPage(family, null, DiagramStore.PAGE_SIZE));
+		assertFalse(store.getPage(family, null, store.getCount() / DiagramStore.PAGE_SIZE * DiagramStore.PAGE_SIZE).isMore());
+	}
+}
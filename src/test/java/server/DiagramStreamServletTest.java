@@ -0,0 +1,217 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import feynman.Diagram;
+import feynman.DiagramIterator;
+import request.DiagramRequest;
+
+@SuppressWarnings("javadoc")
+public class DiagramStreamServletTest {
+	/* e- e+ -> e- e+ with 4 vertices */
+	private static final String DATA = ServletStubs.data(1, 1, 0, 1, 1, 0, 4);
+
+	/* The diagrams of the process, counted without the servlet. */
+	private static long count(String data) {
+		DiagramRequest diagReq = DiagramRequest.parseJson(data);
+		Diagram process = diagReq.toDiagram();
+		DiagramIterator itr = process.searchSubDiagrams(diagReq.toFilter(), 0);
+		long count = 0;
+		for(; itr.hasNext(); itr.next()) {
+			count++;
+		}
+		return count;
+	}
+	private static DiagramStreamServlet servlet(Map<String, String> initParameters) throws ServletException {
+		DiagramStreamServlet servlet = new DiagramStreamServlet();
+		servlet.init(ServletStubs.config(initParameters));
+		return servlet;
+	}
+	private static Map<String, String> parameters(String... pairs) {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("data", DATA);
+		for(int i = 0; i < pairs.length; i += 2) {
+			parameters.put(pairs[i], pairs[i + 1]);
+		}
+		return parameters;
+	}
+	/* The body of the response to a request. */
+	private static String get(DiagramStreamServlet servlet, Map<String, String> parameters, ServletStubs.Response response) throws Exception {
+		StringWriter body = new StringWriter();
+		servlet.doGet(ServletStubs.request(parameters, response),
+				ServletStubs.response(new PrintWriter(body), 8192, response));
+		return body.toString();
+	}
+	private static List<JsonObject> lines(String body) {
+		assertTrue(body.endsWith("\n"));
+		List<JsonObject> lines = new ArrayList<JsonObject>();
+		for(String line: body.split("\n")) {
+			lines.add(new JsonParser().parse(line).getAsJsonObject());
+		}
+		return lines;
+	}
+
+	@Test
+	public void testNdjson() throws Exception {
+		ServletStubs.Response response = new ServletStubs.Response();
+		long requests = ServerMetrics.get().getRequests();
+		List<JsonObject> lines = lines(get(servlet(new HashMap<String, String>()), parameters("limit", "5"), response));
+		assertTrue(ServerMetrics.get().getRequests() > requests);
+		assertEquals("application/x-ndjson", response.contentType);
+		assertEquals(6, lines.size());
+		for(int i = 0; i < 5; i++) {
+			assertEquals(i, lines.get(i).get("index").getAsLong());
+			assertTrue(lines.get(i).has("electron"));
+			assertTrue(lines.get(i).has("photon"));
+		}
+		assertTrue(lines.get(5).get("more").getAsBoolean());
+		assertNotNull(lines.get(5).get("cursor").getAsString());
+	}
+
+	@Test
+	public void testEvents() throws Exception {
+		ServletStubs.Response response = new ServletStubs.Response();
+		String body = get(servlet(new HashMap<String, String>()), parameters("limit", "3", "format", "sse", "encoding", "compact"), response);
+		assertEquals("text/event-stream", response.contentType);
+		assertTrue(body.endsWith("\n\n"));
+		String[] events = body.split("\n\n");
+		String[] names = {"process", "diagram", "diagram", "diagram", "end"};
+		assertEquals(names.length, events.length);
+		for(int i = 0; i < names.length; i++) {
+			String[] lines = events[i].split("\n");
+			assertEquals(2, lines.length);
+			assertEquals("event: " + names[i], lines[0]);
+			assertTrue(lines[1].startsWith("data: "));
+			JsonObject data = new JsonParser().parse(lines[1].substring("data: ".length())).getAsJsonObject();
+			if(names[i].equals("diagram")) {
+				assertTrue(data.has("delta"));
+			}
+		}
+	}
+
+	/* Without a limit at most maxLimit are sent, and the cursors continue to the end. */
+	@Test
+	public void testDefaultLimit() throws Exception {
+		Map<String, String> initParameters = new HashMap<String, String>();
+		initParameters.put("maxLimit", "7");
+		DiagramStreamServlet servlet = servlet(initParameters);
+		long total = count(DATA);
+		assertTrue(total > 7);
+		long sent = 0;
+		Map<String, String> parameters = parameters();
+		for(boolean more = true; more;) {
+			List<JsonObject> lines = lines(get(servlet, parameters, new ServletStubs.Response()));
+			JsonObject end = lines.get(lines.size() - 1);
+			more = end.get("more").getAsBoolean();
+			assertTrue(lines.size() - 1 <= 7);
+			assertTrue(!more || lines.size() - 1 == 7);
+			for(JsonObject line: lines.subList(0, lines.size() - 1)) {
+				assertEquals(sent++, line.get("index").getAsLong());
+			}
+			parameters.put("cursor", end.get("cursor").getAsString());
+		}
+		assertEquals(total, sent);
+		// A larger limit is capped
+		parameters.remove("cursor");
+		parameters.put("limit", "100");
+		assertEquals(8, lines(get(servlet, parameters, new ServletStubs.Response())).size());
+	}
+
+	/* The search stops at the budget, with more diagrams to continue. */
+	@Test
+	public void testBudget() throws Exception {
+		Map<String, String> initParameters = new HashMap<String, String>();
+		initParameters.put("streamStates", "1");
+		List<JsonObject> lines = lines(get(servlet(initParameters), parameters(), new ServletStubs.Response()));
+		assertTrue(lines.size() - 1 < count(DATA));
+		JsonObject end = lines.get(lines.size() - 1);
+		assertTrue(end.get("more").getAsBoolean());
+		assertNotNull(end.get("cursor").getAsString());
+	}
+
+	/* Counts what is written and fails after failAt chars, as a client that has gone. */
+	private static class DisconnectingWriter extends Writer {
+		private final long failAt;
+		long written;
+		DisconnectingWriter(long failAt) {
+			this.failAt = failAt;
+		}
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			written += len;
+			if(written > failAt) {
+				throw new IOException("Disconnected");
+			}
+		}
+		@Override
+		public void flush() {}
+		@Override
+		public void close() {}
+	}
+
+	/* Without flushes a disconnect is found within about a buffer of the diagrams. */
+	@Test
+	public void testDisconnect() throws Exception {
+		int bufferSize = 1024;
+		Map<String, String> parameters = parameters("flush", "0");
+		parameters.put("data", ServletStubs.data(1, 1, 0, 1, 1, 0, 6));
+		assertTrue(count(parameters.get("data")) > 4096);
+		DisconnectingWriter writer = new DisconnectingWriter(4096);
+		ServletStubs.Response response = new ServletStubs.Response();
+		servlet(new HashMap<String, String>()).doGet(ServletStubs.request(parameters, response),
+				ServletStubs.response(new PrintWriter(writer), bufferSize, response));
+		assertTrue(writer.written > 4096);
+		assertTrue("Wrote " + writer.written, writer.written < 4096 + 2 * bufferSize);
+	}
+
+	@Test
+	public void testBadRequest() throws Exception {
+		ServletStubs.Response response = new ServletStubs.Response();
+		String body = get(servlet(new HashMap<String, String>()), parameters("cursor", "AQ"), response);
+		assertEquals(400, response.status);
+		assertFalse(body.contains("end"));
+	}
+
+	/* Crossings of a process without vertices, left out of the request, are rejected. */
+	@Test
+	public void testCrossingsWithoutInteractions() throws Exception {
+		ServletStubs.Response response = new ServletStubs.Response();
+		Map<String, String> parameters = parameters("crossings", "true");
+		parameters.put("data", "{\"incomingElectrons\":[\"i0\"],\"outgoingElectrons\":[\"o0\"]}");
+		String body = get(servlet(new HashMap<String, String>()), parameters, response);
+		assertEquals(400, response.status);
+		assertEquals("", body);
+	}
+
+	/* Limits that would never be reached, and parameters that are not numbers, are rejected. */
+	@Test
+	public void testBadLimit() throws Exception {
+		String[][] bad = {{"limit", "-1"}, {"limit", "0"}, {"limit", "x"}, {"flush", "-1"}, 
+		                  {"flush", "x"}, {"index", "-1"}, {"index", "1e3"}};
+		for(String[] parameter: bad) {
+			ServletStubs.Response response = new ServletStubs.Response();
+			String body = get(servlet(new HashMap<String, String>()), parameters(parameter), response);
+			assertEquals(parameter[0] + "=" + parameter[1], 400, response.status);
+			assertEquals("", body);
+		}
+	}
+}
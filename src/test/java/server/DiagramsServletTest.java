@@ -0,0 +1,202 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import javax.servlet.ServletException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import feynman.Diagram;
+import feynman.DiagramFilter;
+
+@SuppressWarnings("javadoc")
+public class DiagramsServletTest {
+	/* e- e+ -> e- e+ with 4 vertices, and e- e+ -> g g with 2 */
+	private static final String SCATTERING = ServletStubs.data(1, 1, 0, 1, 1, 0, 4);
+	private static final String ANNIHILATION = ServletStubs.data(1, 1, 0, 0, 0, 2, 2);
+	private DiagramsServlet servlet;
+	/* Pages calculated by the servlet, by requests or prefetching. */
+	private final AtomicInteger pages = new AtomicInteger();
+	/* Released when the first page calculated may be. */
+	private final CountDownLatch entered = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		servlet.destroy();
+	}
+	/* A servlet of the init parameters, of which the first page calculated waits for release. */
+	private DiagramsServlet servlet(String... pairs) throws ServletException {
+		Map<String, String> initParameters = new HashMap<String, String>();
+		for(int i = 0; i < pairs.length; i += 2) {
+			initParameters.put(pairs[i], pairs[i + 1]);
+		}
+		servlet = new DiagramsServlet() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			DiagramPage calculatePage(Diagram diagram, boolean topologies, DiagramFilter filter, String cursor, long from) {
+				if(pages.incrementAndGet() == 1) {
+					entered.countDown();
+					await(release);
+				}
+				return super.calculatePage(diagram, topologies, filter, cursor, from);
+			}
+		};
+		servlet.init(ServletStubs.config(initParameters));
+		return servlet;
+	}
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch(InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	/* The response to a request of the data, with the attributes forwarded to Diagrams.jsp. */
+	static ServletStubs.Response get(DiagramsServlet servlet, String data) throws Exception {
+		Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put("data", data);
+		ServletStubs.Response response = new ServletStubs.Response();
+		servlet.doGet(ServletStubs.request(parameters, response),
+				ServletStubs.response(new PrintWriter(new StringWriter()), 8192, response));
+		return response;
+	}
+	private static Set<String> names(String... names) {
+		return new HashSet<String>(Arrays.asList(names));
+	}
+	/* Names of the nodes of a layout. */
+	private static Set<String> names(JsonObject nodes) {
+		Set<String> names = new HashSet<String>();
+		for(Map.Entry<String, JsonElement> entry: nodes.entrySet()) {
+			names.add(entry.getKey());
+		}
+		return names;
+	}
+	/* Polls until the count reaches the value, or fails after a few seconds. */
+	private static void awaitCount(LongSupplier count, long value) throws InterruptedException {
+		for(int i = 0; i < 5000 && count.getAsLong() < value; i++) {
+			Thread.sleep(1);
+		}
+		assertTrue(count.getAsLong() >= value);
+	}
+
+	@Test
+	public void testPage() throws Exception {
+		release.countDown();
+		ServletStubs.Response response = get(servlet(), SCATTERING);
+		assertEquals(200, response.status);
+		assertEquals("/WEB-INF/Diagrams.jsp", response.forward);
+		assertEquals(9, ((List<?>) response.attributes.get("diagramList")).size());
+		assertEquals(true, response.attributes.get("more"));
+		assertNotNull(response.attributes.get("cursor"));
+		assertNotNull(response.attributes.get("total"));
+	}
+
+	/* Names left out of the request are none, e.g. a process without vertices. */
+	@Test
+	public void testWithoutInteractions() throws Exception {
+		release.countDown();
+		ServletStubs.Response response = get(servlet(), "{\"incomingElectrons\":[\"i0\"],\"outgoingElectrons\":[\"o0\"]}");
+		assertEquals(200, response.status);
+		assertEquals(1, ((List<?>) response.attributes.get("diagramList")).size());
+		assertEquals(false, response.attributes.get("more"));
+	}
+
+	/* A process of other names, with the same signature, is answered from the cached page in it's names. */
+	@Test
+	public void testRelabelledHit() throws Exception {
+		release.countDown();
+		servlet();
+		ServletStubs.Response first = get(servlet, ANNIHILATION);
+		assertEquals(200, first.status);
+		assertEquals(1, pages.get());
+		long hits = ServerMetrics.get().getCacheHits();
+		ServletStubs.Response response = get(servlet, "{\"incomingElectrons\":[\"a\"],\"incomingPositrons\":[\"b\"],"
+				+ "\"outgoingPhotons\":[\"g1\",\"g2\"],\"interactions\":[\"x\",\"y\"]}");
+		assertEquals(200, response.status);
+		assertEquals(hits + 1, ServerMetrics.get().getCacheHits());
+		assertEquals(1, pages.get());
+		List<?> diagrams = (List<?>) response.attributes.get("diagramList");
+		assertEquals(((List<?>) first.attributes.get("diagramList")).size(), diagrams.size());
+		for(Object diagram: diagrams) {
+			JsonObject layout = new JsonParser().parse(((ConnectionBean) diagram).getLayout()).getAsJsonObject();
+			assertEquals(names("a", "b"), names(layout.getAsJsonObject("incoming")));
+			assertEquals(names("g1", "g2"), names(layout.getAsJsonObject("outgoing")));
+			assertTrue(layout.getAsJsonObject("fermion").get("line").getAsString().matches("[abxy,-]+"));
+		}
+	}
+
+	@Test
+	public void testTooLarge() throws Exception {
+		long rejections = ServerMetrics.get().getRejections();
+		ServletStubs.Response response = get(servlet("maxLog10Size", "1"), SCATTERING);
+		assertEquals(413, response.status);
+		assertNull(response.forward);
+		assertEquals(rejections + 1, ServerMetrics.get().getRejections());
+		assertEquals(0, pages.get());
+	}
+
+	/* A heavy request holds a permit while it's page is calculated, and it's process is not prefetched. */
+	@Test
+	public void testHeavyPermits() throws Exception {
+		servlet("heavyLog10Size", "0", "heavyPermits", "1", "heavyWaitMillis", "50");
+		ServletStubs.Response[] first = new ServletStubs.Response[1];
+		Thread holding = new Thread(() -> {
+			try {
+				first[0] = get(servlet, SCATTERING);
+			} catch(Exception e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		holding.start();
+		await(entered);
+		long rejections = ServerMetrics.get().getRejections();
+		ServletStubs.Response rejected = get(servlet, ANNIHILATION);
+		assertEquals(503, rejected.status);
+		assertEquals("1", rejected.headers.get("Retry-After"));
+		assertNull(rejected.forward);
+		assertEquals(rejections + 1, ServerMetrics.get().getRejections());
+		release.countDown();
+		holding.join();
+		assertEquals(200, first[0].status);
+		assertEquals(true, first[0].attributes.get("more"));
+		// The permit is released, and the next pages are not calculated without one
+		assertEquals(200, get(servlet, ANNIHILATION).status);
+		Thread.sleep(200);
+		assertEquals(2, pages.get());
+	}
+
+	/* The next pages of processes that are not heavy are calculated in the background. */
+	@Test
+	public void testPrefetch() throws Exception {
+		release.countDown();
+		long prefetches = ServerMetrics.get().getPrefetches();
+		ServletStubs.Response response = get(servlet("prefetchPages", "2"), SCATTERING);
+		assertEquals(200, response.status);
+		awaitCount(pages::get, 3);
+		// Recorded once each page is calculated
+		awaitCount(ServerMetrics.get()::getPrefetches, prefetches + 2);
+		assertEquals(3, pages.get());
+	}
+}
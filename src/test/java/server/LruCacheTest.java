@@ -0,0 +1,68 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+@SuppressWarnings("javadoc")
+public class LruCacheTest {
+	/* A cache of at most 10 bytes, of which each value weighs it's length. */
+	private final LruCache<String, String> cache = new LruCache<String, String>(10, String::length);
+
+	@Test
+	public void testEvictByWeight() {
+		cache.put("a", "aaaa");
+		cache.put("b", "bbbb");
+		assertEquals(8, cache.getWeight());
+		cache.put("c", "cccc");
+		// The least recently used, until within the weight
+		assertNull(cache.peek("a"));
+		assertEquals("bbbb", cache.peek("b"));
+		assertEquals("cccc", cache.peek("c"));
+		assertEquals(8, cache.getWeight());
+		// Replacing a value counts only the new weight
+		cache.put("b", "bb");
+		assertEquals(6, cache.getWeight());
+		assertEquals(2, cache.size());
+		// Heavier than the maximum, so not cached
+		cache.put("d", "ddddddddddd");
+		assertNull(cache.peek("d"));
+		assertEquals(6, cache.getWeight());
+	}
+
+	@Test
+	public void testGetPromotes() {
+		cache.put("a", "aaaa");
+		cache.put("b", "bbbb");
+		assertEquals("aaaa", cache.get("a"));
+		cache.put("c", "cccc");
+		assertNull(cache.peek("b"));
+		assertEquals("aaaa", cache.peek("a"));
+		// A value put again is the most recently used
+		cache.put("a", "aaa");
+		cache.put("d", "dddd");
+		assertNull(cache.peek("c"));
+		assertEquals("aaa", cache.peek("a"));
+	}
+
+	@Test
+	public void testPeekDoesNotPromote() {
+		cache.put("a", "aaaa");
+		cache.put("b", "bbbb");
+		assertEquals("aaaa", cache.peek("a"));
+		cache.put("c", "cccc");
+		assertNull(cache.peek("a"));
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getMisses());
+	}
+
+	@Test
+	public void testHitsAndMisses() {
+		cache.put("a", "aaaa");
+		assertEquals("aaaa", cache.get("a"));
+		assertNull(cache.get("b"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+}
@@ -0,0 +1,225 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+import feynman.Diagram;
+
+@SuppressWarnings("javadoc")
+public class PagePrefetcherTest {
+	private final LruCache<String, DiagramPage> cache = new LruCache<String, DiagramPage>(1 << 20, DiagramPage::getWeight);
+	private PagePrefetcher prefetcher;
+
+	@After
+	public void tearDown() {
+		prefetcher.shutdown();
+	}
+	/* A page without diagrams, of which the next page is of cursor + 1. */
+	private static DiagramPage page(String cursor, boolean more) {
+		return new DiagramPage(Collections.<Diagram>emptyList(), 0, more, cursor + "1", null, false);
+	}
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch(InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	/* Waits until the threads are blocked, e.g. waiting for a page in flight. */
+	private static void awaitWaiting(List<Thread> threads) throws InterruptedException {
+		for(Thread thread: threads) {
+			while(thread.getState() != Thread.State.WAITING) {
+				assertTrue(thread.isAlive());
+				Thread.sleep(1);
+			}
+		}
+	}
+	/* Polls until the count reaches the value, or fails after a few seconds. */
+	private static void awaitCount(AtomicInteger count, int value) throws InterruptedException {
+		for(int i = 0; i < 5000 && count.get() < value; i++) {
+			Thread.sleep(1);
+		}
+		assertEquals(value, count.get());
+	}
+	/*
+	 * Calculates a page in a thread until released, while the threads get
+	 * the same key with waiting, and returns the results of each.
+	 */
+	private List<Object> getConcurrently(int threads, Supplier<DiagramPage> first, CountDownLatch entered,
+			CountDownLatch release, AtomicInteger calculations) throws InterruptedException {
+		List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+		List<Thread> waiting = new ArrayList<Thread>();
+		Thread calculating = new Thread(() -> results.add(get(first)));
+		calculating.start();
+		await(entered);
+		for(int i = 0; i < threads; i++) {
+			Thread thread = new Thread(() -> results.add(get(() -> {
+				calculations.incrementAndGet();
+				return page("other", false);
+			})));
+			thread.start();
+			waiting.add(thread);
+		}
+		awaitWaiting(waiting);
+		release.countDown();
+		calculating.join();
+		for(Thread thread: waiting) {
+			thread.join();
+		}
+		return results;
+	}
+	/* The page or exception of getting key. */
+	private Object get(Supplier<DiagramPage> calculate) {
+		try {
+			return prefetcher.get("key", calculate);
+		} catch(RuntimeException e) {
+			return e;
+		}
+	}
+
+	@Test
+	public void testCalculatedOnce() throws InterruptedException {
+		prefetcher = new PagePrefetcher(cache, 1, 0, 1000);
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calculations = new AtomicInteger();
+		DiagramPage page = page("first", false);
+		List<Object> results = getConcurrently(8, () -> {
+			calculations.incrementAndGet();
+			entered.countDown();
+			await(release);
+			return page;
+		}, entered, release, calculations);
+		assertEquals(1, calculations.get());
+		assertEquals(9, results.size());
+		for(Object result: results) {
+			assertSame(page, result);
+		}
+		assertSame(page, cache.peek("key"));
+	}
+
+	@Test
+	public void testExceptionToEveryWaiter() throws InterruptedException {
+		prefetcher = new PagePrefetcher(cache, 1, 0, 1000);
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calculations = new AtomicInteger();
+		IllegalArgumentException thrown = new IllegalArgumentException("Bad cursor");
+		List<Object> results = getConcurrently(8, () -> {
+			calculations.incrementAndGet();
+			entered.countDown();
+			await(release);
+			throw thrown;
+		}, entered, release, calculations);
+		assertEquals(1, calculations.get());
+		assertEquals(9, results.size());
+		for(Object result: results) {
+			assertSame(thrown, result);
+		}
+		// Failures are not cached, the next request calculates again
+		assertEquals(null, cache.peek("key"));
+		assertTrue(get(() -> page("again", false)) instanceof DiagramPage);
+	}
+
+	@Test
+	public void testPrefetchPages() throws InterruptedException {
+		prefetcher = new PagePrefetcher(cache, 1, 3, 60000);
+		AtomicInteger calculations = new AtomicInteger();
+		prefetcher.prefetch("process", "c", cursor -> {
+			calculations.incrementAndGet();
+			return page(cursor, true);
+		});
+		awaitCount(calculations, 3);
+		Thread.sleep(100);
+		assertEquals(3, calculations.get());
+		assertTrue(cache.peek("process|c") != null);
+		assertTrue(cache.peek("process|c11") != null);
+		assertEquals(null, cache.peek("process|c111"));
+	}
+
+	/* Without requests the chain of a process stops after the idle time. */
+	@Test
+	public void testIdleStops() throws InterruptedException {
+		prefetcher = new PagePrefetcher(cache, 1, Integer.MAX_VALUE, 50);
+		AtomicInteger calculations = new AtomicInteger();
+		prefetcher.prefetch("process", "c", cursor -> {
+			calculations.incrementAndGet();
+			try {
+				Thread.sleep(10);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return page(cursor, true);
+		});
+		Thread.sleep(500);
+		int calculated = calculations.get();
+		assertTrue(calculated > 0);
+		assertTrue("Calculated " + calculated, calculated < 20);
+		Thread.sleep(200);
+		assertEquals(calculated, calculations.get());
+	}
+
+	/* Prefetches beyond the queue of a busy pool are dropped. */
+	@Test
+	public void testFullQueueDrops() throws InterruptedException {
+		prefetcher = new PagePrefetcher(cache, 1, 1, 60000);
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger calculations = new AtomicInteger();
+		prefetcher.prefetch("busy", "c", cursor -> {
+			calculations.incrementAndGet();
+			entered.countDown();
+			await(release);
+			return page(cursor, false);
+		});
+		await(entered);
+		ConcurrentHashMap<String, Boolean> calculated = new ConcurrentHashMap<String, Boolean>();
+		for(int i = 0; i < 10; i++) {
+			String processKey = "process" + i;
+			prefetcher.prefetch(processKey, "c", cursor -> {
+				calculated.put(processKey, true);
+				calculations.incrementAndGet();
+				return page(cursor, false);
+			});
+		}
+		release.countDown();
+		// The one calculating and the 4 queued per thread
+		awaitCount(calculations, 5);
+		Thread.sleep(100);
+		assertEquals(5, calculations.get());
+		for(int i = 0; i < 4; i++) {
+			assertTrue(calculated.containsKey("process" + i));
+		}
+	}
+
+	/* A failed prefetch stops the chain, and the page is calculated by the next request. */
+	@Test
+	public void testFailedPrefetch() throws InterruptedException {
+		prefetcher = new PagePrefetcher(cache, 1, 3, 60000);
+		AtomicInteger calculations = new AtomicInteger();
+		AtomicReference<String> failed = new AtomicReference<String>();
+		prefetcher.prefetch("process", "c", cursor -> {
+			calculations.incrementAndGet();
+			failed.set(cursor);
+			throw new IllegalArgumentException("Bad cursor");
+		});
+		awaitCount(calculations, 1);
+		Thread.sleep(100);
+		assertEquals(1, calculations.get());
+		assertEquals("c", failed.get());
+		assertEquals(null, cache.peek("process|c"));
+	}
+}
@@ -0,0 +1,121 @@
+package server;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+
+/**
+ * Requests, responses and configs of servlets for tests, without a
+ * container. Only the methods the servlets call are implemented.
+ * @author Alastair Crowe
+ */
+class ServletStubs {
+	/** The status, headers and content type of a response. */
+	static class Response {
+		int status = HttpServletResponse.SC_OK;
+		String contentType;
+		final Map<String, String> headers = new HashMap<String, String>();
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		/* The path forwarded to, if any. */
+		String forward;
+	}
+	/**
+	 * @return The JSON data parameter of a process, with the names of
+	 * index.html, and the filters of a DiagramRequest.
+	 */
+	static String data(int ie, int ip, int ig, int oe, int op, int og, int v, String... filters) {
+		Map<String, Object> data = new LinkedHashMap<String, Object>();
+		data.put("incomingElectrons", names("i", 0, ie));
+		data.put("incomingPositrons", names("i", ie, ip));
+		data.put("incomingPhotons", names("i", ie + ip, ig));
+		data.put("outgoingElectrons", names("o", 0, oe));
+		data.put("outgoingPositrons", names("o", oe, op));
+		data.put("outgoingPhotons", names("o", oe + op, og));
+		data.put("interactions", names("v", 0, v));
+		for(String filter: filters) {
+			data.put(filter, true);
+		}
+		return new Gson().toJson(data);
+	}
+	private static List<String> names(String prefix, int start, int length) {
+		List<String> names = new ArrayList<String>(length);
+		for(int i = start; i < start + length; i++) {
+			names.add(prefix + i);
+		}
+		return names;
+	}
+	/**
+	 * @return A config of the init parameters.
+	 */
+	static ServletConfig config(Map<String, String> initParameters) {
+		return (ServletConfig) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+				new Class<?>[] {ServletConfig.class}, (proxy, method, args) -> {
+					switch(method.getName()) {
+						case "getInitParameter": return initParameters.get(args[0]);
+						case "getInitParameterNames": return Collections.enumeration(initParameters.keySet());
+						case "getServletName": return "test";
+						default: return null;
+					}
+				});
+	}
+	/**
+	 * @return A GET request of the parameters, of which attributes are kept
+	 * in the response.
+	 */
+	static HttpServletRequest request(Map<String, String> parameters, Response response) {
+		return (HttpServletRequest) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+				new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+					switch(method.getName()) {
+						case "getParameter": return parameters.get(args[0]);
+						case "getMethod": return "GET";
+						case "setAttribute": return response.attributes.put((String) args[0], args[1]);
+						case "getAttribute": return response.attributes.get(args[0]);
+						case "getRequestDispatcher": return dispatcher((String) args[0], response);
+						default: return null;
+					}
+				});
+	}
+	/* A dispatcher that only keeps the path forwarded to. */
+	private static RequestDispatcher dispatcher(String path, Response response) {
+		return (RequestDispatcher) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+				new Class<?>[] {RequestDispatcher.class}, (proxy, method, args) -> {
+					if(method.getName().equals("forward")) {
+						response.forward = path;
+					}
+					return null;
+				});
+	}
+	/**
+	 * @param out Writer of the response body.
+	 * @param bufferSize Size of the buffer of the response.
+	 * @return A response writing to out, of which the status and headers
+	 * are kept in the response.
+	 */
+	static HttpServletResponse response(PrintWriter out, int bufferSize, Response response) {
+		return (HttpServletResponse) Proxy.newProxyInstance(ServletStubs.class.getClassLoader(),
+				new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> {
+					switch(method.getName()) {
+						case "getWriter": return out;
+						case "getBufferSize": return bufferSize;
+						case "sendError": response.status = (Integer) args[0]; return null;
+						case "setStatus": response.status = (Integer) args[0]; return null;
+						case "setContentType": response.contentType = (String) args[0]; return null;
+						case "setHeader": response.headers.put((String) args[0], (String) args[1]); return null;
+						case "isCommitted": return false;
+						default: return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,329 @@
+package shard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import feynman.Diagram;
+import feynman.DiagramFilter;
+import feynman.DiagramIterator;
+import feynman.DiagramTest;
+
+@SuppressWarnings("javadoc")
+public class FileWorkQueueTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private File dir;
+	private final Diagram process = DiagramTest.process(1, 1, 0, 1, 1, 0, 4);
+	private WorkUnit[] units;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = folder.newFolder("queue");
+		units = WorkUnit.partition(process, false, DiagramFilter.ALL, 4);
+		assertTrue(units.length > 1);
+	}
+	private FileWorkQueue submitted() throws IOException {
+		FileWorkQueue queue = new FileWorkQueue(dir);
+		for(WorkUnit unit: units) {
+			queue.submit(unit);
+		}
+		return queue;
+	}
+	/* The records of the diagrams of a search. */
+	static byte[] records(DiagramIterator itr) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(DataOutputStream out = new DataOutputStream(bytes)) {
+			while(itr.hasNext()) {
+				DiagramRecords.write(out, itr.next());
+			}
+		}
+		return bytes.toByteArray();
+	}
+	private static void writeResults(WorkQueue queue, WorkUnit unit) throws IOException {
+		try(OutputStream out = new BufferedOutputStream(queue.results(unit))) {
+			out.write(records(unit.search()));
+		}
+	}
+	private static byte[] read(InputStream in) throws IOException {
+		try(InputStream stream = in) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			for(int read; (read = stream.read(buffer)) != -1;) {
+				bytes.write(buffer, 0, read);
+			}
+			return bytes.toByteArray();
+		}
+	}
+	/* Sets the time of each file of the queue back, as if after the time. */
+	private void age(long millis) throws IOException {
+		try(Stream<Path> files = Files.walk(dir.toPath())) {
+			for(Path file: files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+				FileTime time = Files.getLastModifiedTime(file);
+				Files.setLastModifiedTime(file, FileTime.fromMillis(time.toMillis() - millis));
+			}
+		}
+	}
+	private List<String> names(String subdir) throws IOException {
+		try(Stream<Path> files = Files.list(dir.toPath().resolve(subdir))) {
+			return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+		}
+	}
+
+	@Test
+	public void testClaimComplete() throws IOException {
+		FileWorkQueue queue = submitted();
+		assertEquals(units.length, queue.size());
+		for(int i = 0; i < units.length; i++) {
+			WorkUnit unit = queue.claim();
+			assertNotNull(unit);
+			assertEquals(i, unit.getOrdinal());
+			writeResults(queue, unit);
+			assertNull(queue.completed(i));
+			assertTrue(queue.complete(unit));
+			assertArrayEquals(records(units[i].search()), read(queue.completed(i)));
+		}
+		assertNull(queue.claim());
+		assertEquals(units.length, queue.size());
+		assertEquals(Collections.emptyList(), names("pending"));
+		assertEquals(Collections.emptyList(), names("claimed"));
+		// Only the published results
+		assertEquals(units.length, names("results").size());
+		// Every unit together is the whole search
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		for(int i = 0; i < units.length; i++) {
+			all.write(read(queue.completed(i)));
+		}
+		assertArrayEquals(records(process.searchSubDiagrams()), all.toByteArray());
+	}
+
+	/* Workers of other processes, each with it's own queue, claim each unit once. */
+	@Test
+	public void testClaimedOnce() throws Exception {
+		submitted();
+		List<Integer> claimed = Collections.synchronizedList(new ArrayList<Integer>());
+		AtomicBoolean failed = new AtomicBoolean();
+		List<Thread> workers = new ArrayList<Thread>();
+		for(int i = 0; i < 4; i++) {
+			Thread worker = new Thread(() -> {
+				try {
+					FileWorkQueue queue = new FileWorkQueue(dir);
+					for(WorkUnit unit = queue.claim(); unit != null; unit = queue.claim()) {
+						claimed.add(unit.getOrdinal());
+					}
+				} catch(IOException e) {
+					failed.set(true);
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+		for(Thread worker: workers) {
+			worker.join();
+		}
+		assertFalse(failed.get());
+		Collections.sort(claimed);
+		List<Integer> expected = new ArrayList<Integer>();
+		for(int i = 0; i < units.length; i++) {
+			expected.add(i);
+		}
+		assertEquals(expected, claimed);
+	}
+
+	/* A worker that fails leaves a claim, which expires, and only that unit is searched again. */
+	@Test
+	public void testCrashedWorker() throws IOException {
+		submitted();
+		FileWorkQueue crashed = new FileWorkQueue(dir);
+		WorkUnit lost = crashed.claim();
+		// Part of the results, never completed
+		try(OutputStream out = crashed.results(lost)) {
+			out.write(new byte[] {1, 2, 3});
+		}
+		FileWorkQueue worker = new FileWorkQueue(dir);
+		assertEquals(0, worker.requeue(60000));
+		for(WorkUnit unit = worker.claim(); unit != null; unit = worker.claim()) {
+			assertTrue(unit.getOrdinal() != lost.getOrdinal());
+			writeResults(worker, unit);
+			worker.complete(unit);
+		}
+		assertNull(worker.completed(lost.getOrdinal()));
+		age(120000);
+		assertEquals(1, worker.requeue(60000));
+		assertFalse(crashed.renew(lost));
+		WorkUnit again = worker.claim();
+		assertEquals(lost.getOrdinal(), again.getOrdinal());
+		assertNull(worker.claim());
+		writeResults(worker, again);
+		assertTrue(worker.complete(again));
+		assertArrayEquals(records(units[lost.getOrdinal()].search()), read(worker.completed(lost.getOrdinal())));
+		// The results of the failed worker are removed
+		assertEquals(units.length, names("results").size());
+		assertEquals(Collections.emptyList(), names("claimed"));
+		// Too late, the results were removed
+		assertFalse(crashed.complete(lost));
+		assertArrayEquals(records(units[lost.getOrdinal()].search()), read(worker.completed(lost.getOrdinal())));
+	}
+
+	/* A renewed claim, and it's results, do not expire. */
+	@Test
+	public void testRenew() throws IOException {
+		FileWorkQueue queue = submitted();
+		WorkUnit unit = queue.claim();
+		OutputStream out = queue.results(unit);
+		age(120000);
+		assertTrue(queue.renew(unit));
+		assertEquals(0, queue.requeue(60000));
+		out.write(records(unit.search()));
+		out.close();
+		assertTrue(queue.complete(unit));
+		assertArrayEquals(records(unit.search()), read(queue.completed(unit.getOrdinal())));
+		assertFalse(queue.renew(unit));
+	}
+
+	/* A claim that expires while it's worker still searches is completed once. */
+	@Test
+	public void testCompleteRequeued() throws IOException {
+		FileWorkQueue queue = submitted();
+		WorkUnit unit = queue.claim();
+		writeResults(queue, unit);
+		age(120000);
+		// Results are kept while being written
+		queue.renew(unit);
+		Files.setLastModifiedTime(dir.toPath().resolve("claimed").resolve(String.format("%08d.unit", unit.getOrdinal())),
+				FileTime.fromMillis(0));
+		assertEquals(1, queue.requeue(60000));
+		assertTrue(queue.complete(unit));
+		// Not searched again
+		for(WorkUnit next = queue.claim(); next != null; next = queue.claim()) {
+			assertTrue(next.getOrdinal() != unit.getOrdinal());
+		}
+	}
+
+	/* Workers renew claims of units that take longer than a claim, while they are requeued. */
+	@Test(timeout = 60000)
+	public void testWorkersRenew() throws Exception {
+		submitted();
+		AtomicBoolean done = new AtomicBoolean();
+		Thread merger = new Thread(() -> {
+			try {
+				FileWorkQueue queue = new FileWorkQueue(dir);
+				while(!done.get()) {
+					queue.requeue(200);
+					Thread.sleep(5);
+				}
+			} catch(IOException | InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		merger.start();
+		// Slow results, so each unit takes longer than a claim
+		WorkQueue slow = new FileWorkQueue(dir) {
+			@Override
+			public OutputStream results(WorkUnit unit) throws IOException {
+				return new FilterOutputStream(super.results(unit)) {
+					@Override
+					public void close() throws IOException {
+						try {
+							Thread.sleep(500);
+						} catch(InterruptedException e) {
+							throw new IOException(e);
+						}
+						super.close();
+					}
+				};
+			}
+		};
+		int completed;
+		try {
+			completed = new ShardWorker(slow, 20).work();
+		} finally {
+			done.set(true);
+			merger.join();
+		}
+		assertEquals(units.length, completed);
+		FileWorkQueue queue = new FileWorkQueue(dir);
+		for(int i = 0; i < units.length; i++) {
+			assertArrayEquals(records(units[i].search()), read(queue.completed(i)));
+		}
+	}
+
+	/* A worker removes the results of a unit of which the claim expired, or the search failed. */
+	@Test
+	public void testAbandoned() throws IOException {
+		submitted();
+		FileWorkQueue expiring = new FileWorkQueue(dir) {
+			@Override
+			public boolean renew(WorkUnit unit) {
+				return false;
+			}
+			@Override
+			public OutputStream results(WorkUnit unit) throws IOException {
+				return new FilterOutputStream(super.results(unit)) {
+					@Override
+					public void close() throws IOException {
+						try {
+							Thread.sleep(50);
+						} catch(InterruptedException e) {
+							throw new IOException(e);
+						}
+						super.close();
+					}
+				};
+			}
+		};
+		assertEquals(0, new ShardWorker(expiring, 1).work());
+		assertEquals(0, expiring.writing());
+		assertEquals(Collections.emptyList(), names("results"));
+		// Left to expire
+		assertEquals(units.length, names("claimed").size());
+		age(120000);
+		assertEquals(units.length, expiring.requeue(60000));
+		FileWorkQueue failing = new FileWorkQueue(dir) {
+			@Override
+			public OutputStream results(WorkUnit unit) throws IOException {
+				return new FilterOutputStream(super.results(unit)) {
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						throw new IOException("Disk full");
+					}
+				};
+			}
+		};
+		try {
+			new ShardWorker(failing, 60000).work();
+			fail();
+		} catch(IOException e) {
+			assertEquals("Disk full", e.getMessage());
+		}
+		assertEquals(0, failing.writing());
+		assertEquals(Collections.emptyList(), names("results"));
+	}
+}
@@ -0,0 +1,160 @@
+package shard;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import feynman.Diagram;
+import feynman.DiagramFilter;
+import feynman.DiagramIterator;
+import feynman.DiagramTest;
+
+@SuppressWarnings("javadoc")
+public class ShardMergerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	private final Diagram process = DiagramTest.process(1, 1, 0, 1, 1, 0, 4);
+	private FileWorkQueue queue;
+	private WorkUnit[] units;
+	private File output;
+
+	@Before
+	public void setUp() throws IOException {
+		queue = new FileWorkQueue(folder.newFolder("queue"));
+		units = WorkUnit.partition(process, false, DiagramFilter.ALL, 6);
+		assertTrue(units.length > 3);
+		for(WorkUnit unit: units) {
+			queue.submit(unit);
+		}
+		output = new File(folder.getRoot(), "output.records");
+	}
+	/* Claims and completes the units, of which there must be only these waiting. */
+	private void complete(int... ordinals) throws IOException {
+		for(int ordinal: ordinals) {
+			WorkUnit unit = queue.claim();
+			assertEquals(ordinal, unit.getOrdinal());
+			try(OutputStream out = queue.results(unit)) {
+				out.write(FileWorkQueueTest.records(unit.search()));
+			}
+			assertTrue(queue.complete(unit));
+		}
+	}
+	/* The output has each diagram of the search of the whole process, in order. */
+	private void assertMerged() throws IOException {
+		assertArrayEquals(FileWorkQueueTest.records(process.searchSubDiagrams()), Files.readAllBytes(output.toPath()));
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(output)))) {
+			DiagramIterator itr = process.searchSubDiagrams();
+			for(Diagram diagram = DiagramRecords.read(in, process); diagram != null; diagram = DiagramRecords.read(in, process)) {
+				Diagram expected = itr.next();
+				for(int i = 0; i < process.size(); i++) {
+					assertEquals(expected.connectionOf(i), diagram.connectionOf(i));
+				}
+			}
+			assertFalse(itr.hasNext());
+		}
+	}
+
+	@Test
+	public void testMergeInOrder() throws IOException {
+		ShardMerger merger = new ShardMerger(queue, output);
+		assertFalse(merger.merge());
+		assertEquals(0, merger.getMerged());
+		complete(0, 1);
+		assertFalse(merger.merge());
+		assertEquals(2, merger.getMerged());
+		long bytes = merger.getBytes();
+		assertEquals(bytes, output.length());
+		// Units completed out of order wait for those before
+		WorkUnit skipped = queue.claim();
+		assertEquals(2, skipped.getOrdinal());
+		for(int ordinal = 3; ordinal < units.length; ordinal++) {
+			complete(ordinal);
+		}
+		assertFalse(merger.merge());
+		assertEquals(2, merger.getMerged());
+		assertEquals(bytes, output.length());
+		try(OutputStream out = queue.results(skipped)) {
+			out.write(FileWorkQueueTest.records(skipped.search()));
+		}
+		queue.complete(skipped);
+		assertTrue(merger.merge());
+		assertEquals(units.length, merger.getMerged());
+		assertMerged();
+		// Merging again changes nothing
+		assertTrue(merger.merge());
+		assertMerged();
+	}
+
+	/* A merger that fails part way is continued from it's checkpoint by the next. */
+	@Test
+	public void testRestart() throws IOException {
+		complete(0, 1, 2);
+		ShardMerger first = new ShardMerger(queue, output);
+		assertFalse(first.merge());
+		assertEquals(3, first.getMerged());
+		// Part of the next unit, written before the merger failed
+		try(OutputStream out = Files.newOutputStream(output.toPath(), StandardOpenOption.APPEND)) {
+			out.write(new byte[] {1, 2, 3, 4, 5});
+		}
+		for(int ordinal = 3; ordinal < units.length; ordinal++) {
+			complete(ordinal);
+		}
+		ShardMerger restarted = new ShardMerger(queue, output);
+		assertEquals(3, restarted.getMerged());
+		assertEquals(first.getBytes(), restarted.getBytes());
+		assertTrue(restarted.merge());
+		assertMerged();
+		assertEquals(units.length, new ShardMerger(queue, output).getMerged());
+	}
+
+	@Test
+	public void testCorruptCheckpoint() throws IOException {
+		Files.write(new File(output.getPath() + ".checkpoint").toPath(), "x\n".getBytes(StandardCharsets.UTF_8));
+		try {
+			new ShardMerger(queue, output);
+			fail();
+		} catch(IOException e) {
+			// Expected
+		}
+	}
+
+	/* A unit of a failed worker is merged once searched again, as if the worker had not failed. */
+	@Test
+	public void testCrashedWorker() throws IOException {
+		WorkUnit lost = queue.claim();
+		assertEquals(0, lost.getOrdinal());
+		try(OutputStream out = queue.results(lost)) {
+			out.write(new byte[] {1, 2, 3});
+		}
+		for(int ordinal = 1; ordinal < units.length; ordinal++) {
+			complete(ordinal);
+		}
+		ShardMerger merger = new ShardMerger(queue, output);
+		assertFalse(merger.merge());
+		assertEquals(0, merger.getMerged());
+		assertNull(queue.completed(0));
+		// As if the claim time had passed
+		assertEquals(1, queue.requeue(-60000));
+		complete(0);
+		assertTrue(merger.merge());
+		assertMerged();
+	}
+}